@@ -0,0 +1,147 @@
+package cz.gov.data.benchmark;
+
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.graph.models.ListItem;
+import com.microsoft.graph.models.ListItemCollectionResponse;
+import com.microsoft.kiota.serialization.JsonParseNodeFactory;
+import cz.gov.data.ms.sharepoint.Cell;
+import cz.gov.data.ms.sharepoint.Column;
+import cz.gov.data.ms.sharepoint.ListItemPageReader;
+import cz.gov.data.ms.sharepoint.Row;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every operation decodes a single page of items into rows, so time
+ * and allocations are per page. Compares the Graph SDK model with
+ * {@link ListItemPageReader}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ItemPageBenchmark {
+
+    private static final long SEED = 42;
+
+    private static final String CONTENT_TYPE = "application/json";
+
+    @Param("20")
+    public int width;
+
+    /**
+     * Number of items in the page.
+     */
+    @Param("200")
+    public int size;
+
+    /**
+     * See {@link ListGenerator#generate}.
+     */
+    @Param({"NSCBD", "S", "N"})
+    public String mix;
+
+    private byte[] page;
+
+    private List<Column> columns;
+
+    private ListItemPageReader reader;
+
+    private final JsonParseNodeFactory parseNodeFactory =
+            new JsonParseNodeFactory();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        var list = new ListGenerator(SEED).generate(width, size, mix);
+        columns = list.columns;
+        page = toJson(list.rows);
+        reader = new ListItemPageReader(columns);
+    }
+
+    /**
+     * Page as returned by Graph, with the properties we do not use.
+     */
+    private static byte[] toJson(List<Row> rows) throws IOException {
+        var result = new StringWriter();
+        var writer = new JsonWriter(result);
+        writer.beginObject();
+        writer.name("@odata.context").value(
+                "https://graph.microsoft.com/v1.0/$metadata#items");
+        writer.name("value").beginArray();
+        int identifier = 0;
+        for (Row row : rows) {
+            writer.beginObject();
+            writer.name("@odata.etag").value("\"etag," + identifier + "\"");
+            writer.name("createdDateTime").value("2020-01-01T00:00:00Z");
+            writer.name("id").value(String.valueOf(++identifier));
+            writer.name("fields").beginObject();
+            writer.name("@odata.etag").value("\"etag," + identifier + "\"");
+            for (Cell cell : row.cells) {
+                writer.name(cell.column.name);
+                switch (cell.value) {
+                    case null -> writer.nullValue();
+                    case Double typed -> writer.value(typed);
+                    case Boolean typed -> writer.value(typed);
+                    default -> writer.value(cell.value.toString());
+                }
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("@odata.nextLink").value(
+                "https://graph.microsoft.com/v1.0/sites/x/lists/y/items?$skiptoken=1");
+        writer.endObject();
+        writer.close();
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Same as Sharepoint.createRow.
+     */
+    @Benchmark
+    public List<Row> graphSdk() {
+        var response = parseNodeFactory
+                .getParseNode(CONTENT_TYPE, new ByteArrayInputStream(page))
+                .getObjectValue(
+                        ListItemCollectionResponse::createFromDiscriminatorValue);
+        var result = new ArrayList<Row>();
+        for (ListItem item : response.getValue()) {
+            var data = item.getFields().getAdditionalData();
+            var cells = new ArrayList<Cell>(columns.size());
+            for (Column column : columns) {
+                cells.add(new Cell(column, data.get(column.name)));
+            }
+            result.add(new Row(item.getId(), cells));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<Row> streaming() throws IOException {
+        return reader.read(new InputStreamReader(
+                new ByteArrayInputStream(page), StandardCharsets.UTF_8)).list().rows;
+    }
+
+}
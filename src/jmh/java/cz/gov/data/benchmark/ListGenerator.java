@@ -0,0 +1,100 @@
+package cz.gov.data.benchmark;
+
+import cz.gov.data.ms.sharepoint.Cell;
+import cz.gov.data.ms.sharepoint.Column;
+import cz.gov.data.ms.sharepoint.ColumnType;
+import cz.gov.data.ms.sharepoint.Row;
+import cz.gov.data.ms.sharepoint.SharepointList;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic lists with values of the same types as returned
+ * by Graph. The generator is deterministic for given arguments.
+ */
+public class ListGenerator {
+
+    /**
+     * Share of empty cells.
+     */
+    private static final double NULL_RATIO = 0.05;
+
+    private static final int CHOICE_COUNT = 8;
+
+    private static final String ALPHABET =
+            "abcdefghijklmnopqrstuvwxyz áčďéěíňóřšťúůýž";
+
+    private final Random random;
+
+    public ListGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param mix Column types used in cycle, one letter per column:
+     *            N number, S string, C choice, B boolean, D date time.
+     */
+    public SharepointList generate(int width, int rowCount, String mix) {
+        var columns = new ArrayList<Column>(width);
+        for (int index = 0; index < width; ++index) {
+            var type = columnType(mix.charAt(index % mix.length()));
+            String name = "column" + index;
+            columns.add(new Column(type, name, name));
+        }
+        var rows = new ArrayList<Row>(rowCount);
+        for (int index = 0; index < rowCount; ++index) {
+            rows.add(generateRow(columns));
+        }
+        return new SharepointList(columns, rows);
+    }
+
+    private static ColumnType columnType(char code) {
+        return switch (code) {
+            case 'N' -> ColumnType.Number;
+            case 'S' -> ColumnType.String;
+            case 'C' -> ColumnType.Choice;
+            case 'B' -> ColumnType.Boolean;
+            case 'D' -> ColumnType.DataTime;
+            default -> throw new IllegalArgumentException(
+                    "Unknown column type '" + code + "'.");
+        };
+    }
+
+    private Row generateRow(List<Column> columns) {
+        var cells = new ArrayList<Cell>(columns.size());
+        for (Column column : columns) {
+            cells.add(new Cell(column, generateValue(column.type)));
+        }
+        return new Row(cells);
+    }
+
+    private Object generateValue(ColumnType type) {
+        if (random.nextDouble() < NULL_RATIO) {
+            return null;
+        }
+        return switch (type) {
+            case Number -> random.nextBoolean() ?
+                    (double) random.nextInt(100000) :
+                    random.nextInt(1000000) / 100.0;
+            case Choice -> "Choice " + random.nextInt(CHOICE_COUNT);
+            case Boolean -> random.nextBoolean();
+            case DataTime -> Instant.parse("2020-01-01T00:00:00Z")
+                    .plus(random.nextInt(5 * 365 * 24 * 60), ChronoUnit.MINUTES)
+                    .toString();
+            default -> generateString(5 + random.nextInt(40));
+        };
+    }
+
+    private String generateString(int length) {
+        var result = new StringBuilder(length);
+        for (int index = 0; index < length; ++index) {
+            result.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,134 @@
+package cz.gov.data.benchmark;
+
+import cz.gov.data.ms.sharepoint.Row;
+import cz.gov.data.ms.sharepoint.SharePointListToRdf;
+import cz.gov.data.rdf.OutputFormat;
+import cz.gov.data.rdf.StatementsBuilder;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.rio.RDFWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every operation processes a single row, so time and allocations
+ * reported by the GC profiler (gc.alloc.rate.norm) are per row.
+ * Rows are taken from the generated list in cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListToRdfBenchmark {
+
+    private static final String URL = "http://localhost/list";
+
+    private static final long SEED = 42;
+
+    @Param("20")
+    public int width;
+
+    @Param("10000")
+    public int rows;
+
+    /**
+     * See {@link ListGenerator#generate}.
+     */
+    @Param({"NSCBD", "S", "N"})
+    public String mix;
+
+    @Param("trig")
+    public String format;
+
+    private Row[] data;
+
+    /**
+     * Statements for each row, input for serialization.
+     */
+    private List<List<Statement>> statements;
+
+    private int next = 0;
+
+    private final List<Statement> buffer = new ArrayList<>();
+
+    private SharePointListToRdf converter;
+
+    private RDFWriter writer;
+
+    private SharePointListToRdf writingConverter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var list = new ListGenerator(SEED).generate(width, rows, mix);
+        data = list.rows.toArray(new Row[0]);
+        statements = new ArrayList<>(data.length);
+        var rowStatements = new ArrayList<Statement>();
+        var rowConverter = new SharePointListToRdf(
+                new StatementsBuilder(rowStatements), URL);
+        rowConverter.onColumns(list.columns);
+        for (Row row : data) {
+            rowStatements.clear();
+            rowConverter.onRow(row);
+            statements.add(List.copyOf(rowStatements));
+        }
+        // list -> statements
+        converter = new SharePointListToRdf(new StatementsBuilder(buffer), URL);
+        converter.onColumns(list.columns);
+        // statements -> output
+        writer = OutputFormat.parse(format)
+                .createWriter(OutputStream.nullOutputStream());
+        writer.startRDF();
+        // list -> output
+        writingConverter = new SharePointListToRdf(
+                new StatementsBuilder(writer::handleStatement), URL);
+        writingConverter.onColumns(list.columns);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writer.endRDF();
+    }
+
+    private int nextIndex() {
+        int result = next;
+        next = (next + 1) % data.length;
+        return result;
+    }
+
+    @Benchmark
+    public int listToStatements() {
+        buffer.clear();
+        converter.onRow(data[nextIndex()]);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public void statementsToOutput() {
+        for (Statement statement : statements.get(nextIndex())) {
+            writer.handleStatement(statement);
+        }
+    }
+
+    @Benchmark
+    public void endToEnd() {
+        writingConverter.onRow(data[nextIndex()]);
+    }
+
+}
@@ -0,0 +1,674 @@
+package cz.gov.data.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cz.gov.data.ms.sharepoint.QuickXorHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local HTTP server answering the subset of Graph API used by the adapter,
+ * so downloads can be tested without a tenant.
+ * <p>
+ * There is a single site with a list of synthetic rows and a drive
+ * with a directory of synthetic files. Responses can be replaced by
+ * recorded ones, a response for "/sites/x/drives" is read from
+ * "{recordings}/sites/x/drives.json".
+ * <p>
+ * Paging uses "@odata.nextLink", every request can be delayed and
+ * answered with 429 to test throttling. File content is served from
+ * a separate pre-authenticated URL, as Graph does, with range support.
+ */
+public class GraphStandIn implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GraphStandIn.class);
+
+    public static final String SITE = "site";
+
+    public static final String LIST = "list";
+
+    public static final String DRIVE = "drive";
+
+    public static final String DRIVE_NAME = "Documents";
+
+    public static final String DIRECTORY = "data";
+
+    /**
+     * Path to use with download-directory.
+     */
+    public static final String DIRECTORY_PATH = DRIVE_NAME + "/" + DIRECTORY;
+
+    private static final String VERSION = "/v1.0";
+
+    private static final String DIRECTORY_IDENTIFIER = "directory";
+
+    private static final String FILE_PREFIX = "file-";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long SEED = 42;
+
+    public static class Configuration {
+
+        /**
+         * Zero to select a free port.
+         */
+        public int port = 0;
+
+        /**
+         * Delay of every Graph response.
+         */
+        public Duration latency = Duration.ZERO;
+
+        /**
+         * Share of Graph requests answered with 429.
+         */
+        public double throttleRatio = 0;
+
+        /**
+         * Value of Retry-After for throttled requests, in seconds.
+         */
+        public int retryAfter = 1;
+
+        /**
+         * Used when the request does not ask for page size.
+         */
+        public int pageSize = 200;
+
+        public int rows = 10000;
+
+        public int columns = 20;
+
+        /**
+         * Column types used in cycle, one letter per column:
+         * N number, S string, C choice, B boolean, D date time.
+         */
+        public String columnMix = "NSCBD";
+
+        public int files = 20;
+
+        public long fileSize = 1024 * 1024;
+
+        /**
+         * Directory with recorded responses, null to use synthetic only.
+         */
+        public Path recordings = null;
+
+    }
+
+    /**
+     * Response to a Graph request.
+     */
+    protected record Reply(int status, Map<String, String> headers,
+                           JsonElement body) {
+
+        static Reply json(JsonElement body) {
+            return new Reply(200, Map.of(), body);
+        }
+
+        static Reply status(int status) {
+            return new Reply(status, Map.of(), null);
+        }
+
+    }
+
+    @FunctionalInterface
+    protected interface Route {
+
+        Reply handle(Matcher matcher, Map<String, String> query)
+                throws IOException;
+
+    }
+
+    protected final Configuration configuration;
+
+    protected final HttpServer server;
+
+    protected final Gson gson = new Gson();
+
+    protected final Map<Pattern, Route> routes = new LinkedHashMap<>();
+
+    /**
+     * All files have the same content so they share the hash.
+     */
+    protected final String fileHash;
+
+    protected final AtomicLong requestCount = new AtomicLong();
+
+    protected final AtomicLong throttledCount = new AtomicLong();
+
+    protected final AtomicLong bytesServed = new AtomicLong();
+
+    public GraphStandIn(Configuration configuration) throws IOException {
+        this.configuration = configuration;
+        this.fileHash = computeFileHash(configuration.fileSize);
+        this.server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), configuration.port), 0);
+        // Not virtual threads, the server writes responses in synchronized
+        // blocks and would pin the carrier threads.
+        this.server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Routes are registered here, not in the constructor, as they
+     * refer to this instance.
+     */
+    public void start() {
+        registerRoutes();
+        server.createContext("/", this::handle);
+        server.start();
+        LOG.info("Graph stand-in is listening at {}", getBaseUrl());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    /**
+     * Base URL for the Graph client.
+     */
+    public String getBaseUrl() {
+        return getServerUrl() + VERSION;
+    }
+
+    protected String getServerUrl() {
+        var address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    protected void registerRoutes() {
+        String site = "/sites/([^/]+)";
+        String item = "/drives/([^/]+)/items/([^/]+)";
+        // Other lists do not exist, as in Graph they end with 404.
+        String list = "/lists/(" + Pattern.quote(LIST) + ")";
+        routes.put(Pattern.compile(site + list + "/columns"),
+                (matcher, query) -> listColumns());
+        routes.put(Pattern.compile(site + list + "/items"),
+                (matcher, query) -> listItems(matcher.group(0), query));
+        routes.put(Pattern.compile(site + "/drives"),
+                (matcher, query) -> listDrives());
+        routes.put(Pattern.compile("/drives/([^/]+)/root:(.*):"),
+                (matcher, query) -> findByPath(matcher.group(2)));
+        routes.put(Pattern.compile("/drives/([^/]+)/root"),
+                (matcher, query) -> Reply.json(createDirectory("root", "")));
+        routes.put(Pattern.compile(item + "/children"),
+                (matcher, query) -> listChildren(
+                        matcher.group(0), matcher.group(2), query));
+        routes.put(Pattern.compile(item + "/content"),
+                (matcher, query) -> redirectToContent(matcher.group(2)));
+        routes.put(Pattern.compile(item),
+                (matcher, query) -> getItem(matcher.group(2)));
+    }
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getRawPath();
+            if (path.startsWith("/download/")) {
+                serveContent(exchange);
+                return;
+            }
+            requestCount.incrementAndGet();
+            sleep(configuration.latency);
+            Reply reply;
+            if (isThrottled()) {
+                reply = throttle();
+            } else if (path.equals(VERSION + "/$batch")) {
+                reply = handleBatch(exchange);
+            } else {
+                reply = route(exchange.getRequestURI());
+            }
+            sendReply(exchange, reply);
+        } catch (RuntimeException ex) {
+            LOG.error("Failed to handle request.", ex);
+            throw ex;
+        }
+    }
+
+    protected boolean isThrottled() {
+        return configuration.throttleRatio > 0
+                && ThreadLocalRandom.current().nextDouble()
+                < configuration.throttleRatio;
+    }
+
+    protected Reply throttle() {
+        throttledCount.incrementAndGet();
+        var body = new JsonObject();
+        var error = new JsonObject();
+        error.addProperty("code", "TooManyRequests");
+        error.addProperty("message", "Too many requests.");
+        body.add("error", error);
+        return new Reply(429, Map.of("Retry-After",
+                String.valueOf(configuration.retryAfter)), body);
+    }
+
+    protected Reply route(URI uri) throws IOException {
+        String path = uri.getRawPath();
+        if (!path.startsWith(VERSION)) {
+            return Reply.status(404);
+        }
+        path = path.substring(VERSION.length());
+        var recorded = findRecording(path);
+        if (recorded != null) {
+            return recorded;
+        }
+        var query = parseQuery(uri.getRawQuery());
+        for (var entry : routes.entrySet()) {
+            var matcher = entry.getKey().matcher(path);
+            if (matcher.matches()) {
+                return entry.getValue().handle(matcher, query);
+            }
+        }
+        LOG.warn("No route for '{}'.", path);
+        return Reply.status(404);
+    }
+
+    protected Reply findRecording(String path) throws IOException {
+        if (configuration.recordings == null) {
+            return null;
+        }
+        Path file = configuration.recordings.resolve(
+                URLDecoder.decode(path.substring(1), StandardCharsets.UTF_8)
+                        + ".json");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return Reply.json(JsonParser.parseString(
+                Files.readString(file, StandardCharsets.UTF_8)));
+    }
+
+    protected static Map<String, String> parseQuery(String query) {
+        var result = new HashMap<String, String>();
+        if (query == null) {
+            return result;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+            result.put(
+                    URLDecoder.decode(pair.substring(0, separator),
+                            StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(separator + 1),
+                            StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    // https://learn.microsoft.com/en-us/graph/json-batching
+    protected Reply handleBatch(HttpExchange exchange) throws IOException {
+        JsonObject request;
+        try (var reader = new InputStreamReader(
+                exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            request = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        var responses = new JsonArray();
+        for (JsonElement element : request.getAsJsonArray("requests")) {
+            var step = element.getAsJsonObject();
+            String url = step.get("url").getAsString();
+            if (!url.startsWith("/")) {
+                url = "/" + url;
+            }
+            Reply reply = isThrottled() ?
+                    throttle() : route(URI.create(VERSION + url));
+            var response = new JsonObject();
+            response.addProperty("id", step.get("id").getAsString());
+            response.addProperty("status", reply.status);
+            var headers = new JsonObject();
+            headers.addProperty("Content-Type", "application/json");
+            reply.headers.forEach(headers::addProperty);
+            response.add("headers", headers);
+            if (reply.body != null) {
+                response.add("body", reply.body);
+            }
+            responses.add(response);
+        }
+        var body = new JsonObject();
+        body.add("responses", responses);
+        return Reply.json(body);
+    }
+
+    protected void sendReply(HttpExchange exchange, Reply reply)
+            throws IOException {
+        reply.headers.forEach(exchange.getResponseHeaders()::add);
+        if (reply.body == null) {
+            exchange.sendResponseHeaders(reply.status, -1);
+            return;
+        }
+        byte[] content = gson.toJson(reply.body)
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add(
+                "Content-Type", "application/json");
+        exchange.sendResponseHeaders(reply.status, content.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(content);
+        }
+    }
+
+    // Lists
+
+    protected Reply listColumns() {
+        var columns = new JsonArray();
+        for (int index = 0; index < configuration.columns; ++index) {
+            var column = new JsonObject();
+            column.addProperty("name", columnName(index));
+            column.addProperty("displayName", "Column " + index);
+            column.add(columnFacet(columnType(index)), new JsonObject());
+            columns.add(column);
+        }
+        var body = new JsonObject();
+        body.add("value", columns);
+        return Reply.json(body);
+    }
+
+    protected static String columnName(int index) {
+        return "column" + index;
+    }
+
+    protected char columnType(int index) {
+        String mix = configuration.columnMix;
+        return mix.charAt(index % mix.length());
+    }
+
+    protected static String columnFacet(char type) {
+        return switch (type) {
+            case 'N' -> "number";
+            case 'C' -> "choice";
+            case 'B' -> "boolean";
+            case 'D' -> "dateTime";
+            default -> "text";
+        };
+    }
+
+    protected Reply listItems(String path, Map<String, String> query) {
+        int start = Integer.parseInt(query.getOrDefault("$skiptoken", "0"));
+        int top = pageSize(query);
+        int end = Math.min(start + top, configuration.rows);
+        var items = new JsonArray();
+        for (int row = start; row < end; ++row) {
+            var item = new JsonObject();
+            item.addProperty("id", String.valueOf(row + 1));
+            item.add("fields", createFields(row));
+            items.add(item);
+        }
+        var body = new JsonObject();
+        body.add("value", items);
+        addNextLink(body, path, end, configuration.rows, top);
+        return Reply.json(body);
+    }
+
+    protected int pageSize(Map<String, String> query) {
+        String top = query.get("$top");
+        return top == null ? configuration.pageSize : Integer.parseInt(top);
+    }
+
+    protected void addNextLink(
+            JsonObject body, String path, int next, int total, int top) {
+        if (next < total) {
+            body.addProperty("@odata.nextLink", getBaseUrl() + path
+                    + "?%24top=" + top + "&%24skiptoken=" + next);
+        }
+    }
+
+    /**
+     * Values are generated from the row number, so they are the same
+     * for every request.
+     */
+    protected JsonObject createFields(int row) {
+        var random = new Random(SEED + row);
+        var result = new JsonObject();
+        for (int index = 0; index < configuration.columns; ++index) {
+            String name = columnName(index);
+            switch (columnType(index)) {
+                case 'N' -> result.addProperty(name, random.nextInt(100000));
+                case 'C' -> result.addProperty(
+                        name, "Choice " + random.nextInt(8));
+                case 'B' -> result.addProperty(name, random.nextBoolean());
+                case 'D' -> result.addProperty(name,
+                        Instant.parse("2020-01-01T00:00:00Z")
+                                .plus(random.nextInt(1000000),
+                                        ChronoUnit.MINUTES)
+                                .toString());
+                default -> result.addProperty(
+                        name, "Value " + row + " " + random.nextLong());
+            }
+        }
+        return result;
+    }
+
+    // Drives
+
+    protected Reply listDrives() {
+        var drive = new JsonObject();
+        drive.addProperty("id", DRIVE);
+        drive.addProperty("name", DRIVE_NAME);
+        var drives = new JsonArray();
+        drives.add(drive);
+        var body = new JsonObject();
+        body.add("value", drives);
+        return Reply.json(body);
+    }
+
+    protected Reply findByPath(String rawPath) {
+        String path = URLDecoder.decode(rawPath, StandardCharsets.UTF_8);
+        if (path.equals("/" + DIRECTORY)) {
+            return Reply.json(createDirectory(DIRECTORY_IDENTIFIER, DIRECTORY));
+        }
+        return Reply.status(404);
+    }
+
+    protected JsonObject createDirectory(String identifier, String name) {
+        var result = new JsonObject();
+        result.addProperty("id", identifier);
+        result.addProperty("name", name);
+        var folder = new JsonObject();
+        folder.addProperty("childCount", identifier.equals("root") ?
+                1 : configuration.files);
+        result.add("folder", folder);
+        return result;
+    }
+
+    protected Reply listChildren(
+            String path, String identifier, Map<String, String> query) {
+        var items = new JsonArray();
+        var body = new JsonObject();
+        body.add("value", items);
+        if (identifier.equals("root")) {
+            items.add(createDirectory(DIRECTORY_IDENTIFIER, DIRECTORY));
+            return Reply.json(body);
+        }
+        if (!identifier.equals(DIRECTORY_IDENTIFIER)) {
+            return Reply.status(404);
+        }
+        int start = Integer.parseInt(query.getOrDefault("$skiptoken", "0"));
+        int top = pageSize(query);
+        int end = Math.min(start + top, configuration.files);
+        for (int index = start; index < end; ++index) {
+            items.add(createFile(index));
+        }
+        addNextLink(body, path, end, configuration.files, top);
+        return Reply.json(body);
+    }
+
+    protected JsonObject createFile(int index) {
+        var result = new JsonObject();
+        result.addProperty("id", FILE_PREFIX + index);
+        result.addProperty("name", "file-" + index + ".bin");
+        result.addProperty("size", configuration.fileSize);
+        result.addProperty("eTag", "\"" + index + ",1\"");
+        result.addProperty("cTag", "\"c:" + index + ",1\"");
+        var hashes = new JsonObject();
+        hashes.addProperty("quickXorHash", fileHash);
+        var file = new JsonObject();
+        file.add("hashes", hashes);
+        result.add("file", file);
+        result.addProperty("@microsoft.graph.downloadUrl",
+                getServerUrl() + "/download/" + FILE_PREFIX + index);
+        return result;
+    }
+
+    protected Reply getItem(String identifier) {
+        if (identifier.equals(DIRECTORY_IDENTIFIER)) {
+            return Reply.json(createDirectory(DIRECTORY_IDENTIFIER, DIRECTORY));
+        }
+        Integer index = fileIndex(identifier);
+        if (index == null) {
+            return Reply.status(404);
+        }
+        return Reply.json(createFile(index));
+    }
+
+    protected Integer fileIndex(String identifier) {
+        if (!identifier.startsWith(FILE_PREFIX)) {
+            return null;
+        }
+        try {
+            int result = Integer.parseInt(
+                    identifier.substring(FILE_PREFIX.length()));
+            return result >= 0 && result < configuration.files ? result : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Graph redirects to the pre-authenticated download URL.
+     */
+    protected Reply redirectToContent(String identifier) {
+        if (fileIndex(identifier) == null) {
+            return Reply.status(404);
+        }
+        return new Reply(302, Map.of("Location",
+                getServerUrl() + "/download/" + identifier), null);
+    }
+
+    // Content
+
+    protected void serveContent(HttpExchange exchange) throws IOException {
+        String identifier = exchange.getRequestURI().getRawPath()
+                .substring("/download/".length());
+        if (fileIndex(identifier) == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        // Content never changes, so only the current eTag matches.
+        String eTag = "\"" + fileIndex(identifier) + ",1\"";
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals(eTag)) {
+            exchange.sendResponseHeaders(412, -1);
+            return;
+        }
+        exchange.getResponseHeaders().add("ETag", eTag);
+        long size = configuration.fileSize;
+        long start = 0;
+        long end = size - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int status = 200;
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            status = 206;
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + start + "-" + end + "/" + size);
+        }
+        exchange.getResponseHeaders().add(
+                "Content-Type", "application/octet-stream");
+        long length = end - start + 1;
+        exchange.sendResponseHeaders(status, length);
+        try (var output = exchange.getResponseBody()) {
+            writeContent(output, start, length);
+        }
+        bytesServed.addAndGet(length);
+    }
+
+    protected static void writeContent(
+            OutputStream output, long start, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        long remaining = length;
+        while (remaining > 0) {
+            int count = (int) Math.min(buffer.length, remaining);
+            fillContent(buffer, position, count);
+            output.write(buffer, 0, count);
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Content is given by the position only, so any range can be served.
+     */
+    protected static void fillContent(byte[] buffer, long position, int count) {
+        for (int index = 0; index < count; ++index) {
+            long value = (position + index) * 0x9E3779B97F4A7C15L;
+            buffer[index] = (byte) (value >>> 56);
+        }
+    }
+
+    protected static String computeFileHash(long size) {
+        var hash = new QuickXorHash();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (long position = 0; position < size; position += buffer.length) {
+            int count = (int) Math.min(buffer.length, size - position);
+            fillContent(buffer, position, count);
+            hash.update(buffer, 0, count);
+        }
+        return hash.digest();
+    }
+
+    protected static void sleep(Duration duration) {
+        if (duration.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
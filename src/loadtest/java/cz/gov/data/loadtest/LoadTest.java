@@ -0,0 +1,218 @@
+package cz.gov.data.loadtest;
+
+import cz.gov.data.ms.AzureAuthentication;
+import cz.gov.data.ms.action.DownloadSharepointDirectory;
+import cz.gov.data.ms.action.DownloadSharepointList;
+import cz.gov.data.ms.http.ThrottlingLimiter;
+import cz.gov.data.ms.metrics.Metrics;
+import cz.gov.data.rdf.OutputFormat;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Runs download-list and download-directory against {@link GraphStandIn}
+ * and reports throughput.
+ */
+public class LoadTest {
+
+    private static final String LIST_BASE_URL = "http://localhost/list";
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        var options = createOptions();
+        CommandLine commandLine;
+        try {
+            commandLine = new DefaultParser().parse(options, args);
+        } catch (ParseException ex) {
+            System.out.println(ex.getMessage());
+            new HelpFormatter().printHelp("Usage:", options);
+            System.exit(1);
+            return;
+        }
+        var configuration = createConfiguration(commandLine);
+        Path output = commandLine.hasOption("output") ?
+                Path.of(commandLine.getOptionValue("output")) :
+                Files.createTempDirectory("ms-adapter-load-test");
+        boolean success;
+        try (var standIn = new GraphStandIn(configuration)) {
+            standIn.start();
+            success = new LoadTest().run(standIn, commandLine, output);
+        }
+        if (commandLine.hasOption("metrics")) {
+            Metrics.getInstance().writePrometheus(
+                    Path.of(commandLine.getOptionValue("metrics")));
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    private static Options createOptions() {
+        var options = new Options();
+        options.addOption(null, "output", true,
+                "Output directory, temporary directory by default.");
+        options.addOption(null, "rows", true, "Number of list rows.");
+        options.addOption(null, "columns", true, "Number of list columns.");
+        options.addOption(null, "mix", true,
+                "Column types: N number, S string, C choice, B boolean,"
+                        + " D date time.");
+        options.addOption(null, "page-size", true,
+                "Number of items in a page.");
+        options.addOption(null, "files", true, "Number of files.");
+        options.addOption(null, "file-size", true, "Size of a file in MB.");
+        options.addOption(null, "latency", true,
+                "Latency of Graph responses in milliseconds.");
+        options.addOption(null, "throttle", true,
+                "Share of Graph requests answered with 429, e.g. 0.05.");
+        options.addOption(null, "retry-after", true,
+                "Retry-After of throttled responses in seconds.");
+        options.addOption(null, "recordings", true,
+                "Directory with recorded responses.");
+        options.addOption(null, "max-requests", true,
+                "Maximum number of requests to Graph API at the same time.");
+        options.addOption(null, "format", true, "List output format.");
+        options.addOption(null, "conversion-parallelism", true,
+                "Number of threads converting rows.");
+        options.addOption(null, "stream-items", false,
+                "Decode pages of items without the Graph SDK model.");
+        options.addOption(null, "parallelism", true,
+                "Number of files downloaded at the same time.");
+        options.addOption(null, "range-threshold", true,
+                "Files larger than this, in MB, are downloaded in ranges.");
+        options.addOption(null, "metrics", true,
+                "Output file with metrics in the Prometheus text format.");
+        return options;
+    }
+
+    private static GraphStandIn.Configuration createConfiguration(
+            CommandLine commandLine) {
+        var result = new GraphStandIn.Configuration();
+        if (commandLine.hasOption("rows")) {
+            result.rows = Integer.parseInt(commandLine.getOptionValue("rows"));
+        }
+        if (commandLine.hasOption("columns")) {
+            result.columns = Integer.parseInt(
+                    commandLine.getOptionValue("columns"));
+        }
+        if (commandLine.hasOption("mix")) {
+            result.columnMix = commandLine.getOptionValue("mix");
+        }
+        if (commandLine.hasOption("page-size")) {
+            result.pageSize = Integer.parseInt(
+                    commandLine.getOptionValue("page-size"));
+        }
+        if (commandLine.hasOption("files")) {
+            result.files = Integer.parseInt(
+                    commandLine.getOptionValue("files"));
+        }
+        if (commandLine.hasOption("file-size")) {
+            result.fileSize = (long) (Double.parseDouble(
+                    commandLine.getOptionValue("file-size")) * MEGABYTE);
+        }
+        if (commandLine.hasOption("latency")) {
+            result.latency = Duration.ofMillis(Long.parseLong(
+                    commandLine.getOptionValue("latency")));
+        }
+        if (commandLine.hasOption("throttle")) {
+            result.throttleRatio = Double.parseDouble(
+                    commandLine.getOptionValue("throttle"));
+        }
+        if (commandLine.hasOption("retry-after")) {
+            result.retryAfter = Integer.parseInt(
+                    commandLine.getOptionValue("retry-after"));
+        }
+        if (commandLine.hasOption("recordings")) {
+            result.recordings = Path.of(
+                    commandLine.getOptionValue("recordings"));
+        }
+        return result;
+    }
+
+    protected boolean run(
+            GraphStandIn standIn, CommandLine commandLine, Path output) {
+        var authentication = new AzureAuthentication(null, null);
+        if (commandLine.hasOption("max-requests")) {
+            int maxRequests = Integer.parseInt(
+                    commandLine.getOptionValue("max-requests"));
+            authentication.setLimiter(new ThrottlingLimiter(
+                    Math.min(ThrottlingLimiter.DEFAULT_INITIAL_LIMIT,
+                            maxRequests),
+                    maxRequests));
+        }
+        authentication.connectToEndpoint(standIn.getBaseUrl());
+        boolean listSuccess = runList(
+                standIn, authentication, commandLine, output);
+        boolean directorySuccess = runDirectory(
+                standIn, authentication, commandLine, output);
+        var limiter = authentication.limiter();
+        System.out.printf("requests: %d, throttled: %d, final limit: %d%n",
+                standIn.getRequestCount(), standIn.getThrottledCount(),
+                limiter.getLimit());
+        return listSuccess && directorySuccess;
+    }
+
+    protected boolean runList(
+            GraphStandIn standIn, AzureAuthentication authentication,
+            CommandLine commandLine, Path output) {
+        var configuration = new DownloadSharepointList.Configuration();
+        if (commandLine.hasOption("format")) {
+            configuration.format = OutputFormat.parse(
+                    commandLine.getOptionValue("format"));
+        }
+        if (commandLine.hasOption("conversion-parallelism")) {
+            configuration.conversionParallelism = Integer.parseInt(
+                    commandLine.getOptionValue("conversion-parallelism"));
+        }
+        configuration.list.streamItems = commandLine.hasOption("stream-items");
+        Path outputPath = output.resolve("list.rdf");
+        long start = System.nanoTime();
+        boolean success = DownloadSharepointList.downloadContent(
+                authentication, GraphStandIn.SITE, GraphStandIn.LIST,
+                LIST_BASE_URL, outputPath, configuration);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int rows = standIn.configuration.rows;
+        System.out.printf("download-list: %s, %d rows in %.2f s,"
+                        + " %.0f rows/s%n",
+                success ? "success" : "failed", rows, seconds,
+                rows / seconds);
+        return success;
+    }
+
+    protected boolean runDirectory(
+            GraphStandIn standIn, AzureAuthentication authentication,
+            CommandLine commandLine, Path output) {
+        var configuration = new DownloadSharepointDirectory.Configuration();
+        if (commandLine.hasOption("parallelism")) {
+            configuration.parallelism = Integer.parseInt(
+                    commandLine.getOptionValue("parallelism"));
+        }
+        if (commandLine.hasOption("range-threshold")) {
+            configuration.file.rangeThreshold = (long) (Double.parseDouble(
+                    commandLine.getOptionValue("range-threshold")) * MEGABYTE);
+        }
+        long servedBefore = standIn.getBytesServed();
+        long start = System.nanoTime();
+        boolean success = DownloadSharepointDirectory.downloadContent(
+                authentication, GraphStandIn.SITE,
+                GraphStandIn.DIRECTORY_PATH, output.resolve("files"),
+                configuration);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double megabytes = standIn.configuration.files
+                * standIn.configuration.fileSize / MEGABYTE;
+        System.out.printf("download-directory: %s, %d files, %.1f MB"
+                        + " in %.2f s, %.1f MB/s, %.1f MB served%n",
+                success ? "success" : "failed",
+                standIn.configuration.files, megabytes, seconds,
+                megabytes / seconds,
+                (standIn.getBytesServed() - servedBefore) / MEGABYTE);
+        return success;
+    }
+
+}
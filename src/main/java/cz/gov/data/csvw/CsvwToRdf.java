@@ -1,5 +1,6 @@
 package cz.gov.data.csvw;
 
+import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Resource;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
@@ -130,6 +131,14 @@ public class CsvwToRdf {
     }
 
     public void onRow(Integer rowSourceNumber) {
+        onRow(rowSourceNumber, null);
+    }
+
+    /**
+     * @param subject Default subject for cells of the row, when null
+     *                a new blank node is used.
+     */
+    public void onRow(Integer rowSourceNumber, Resource subject) {
         // 4.6 For each row in the current table:
         ++rowNumber;
 
@@ -177,10 +186,39 @@ public class CsvwToRdf {
         // 4.6.8 Establish a new blank node S_def to be used
         // as the default subject for cells where about URL is undefined.
         // ...
-        defaultCell = valueFactory.createBNode();
+        // A given subject replaces the blank node, so the row can be
+        // identified across conversions.
+        defaultCell = subject == null ? valueFactory.createBNode() : subject;
     }
 
     public void onCell(CellAnnotation annotation, Collection<Value> values) {
+        onCell(annotation, predicate(annotation), values);
+    }
+
+    /**
+     * Predicate for cells with given annotation, it depends only on the
+     * annotation and the table, so it can be computed once per column.
+     */
+    public IRI predicate(CellAnnotation annotation) {
+        // 4.6.8.3 If the value of property URL for the cell is not null
+        // then predicate P takes the value of property URL.
+        // Else, predicate P is constructed by appending the value of the name
+        // annotation for the column associated with the cell to the
+        // tabular data file URL as a fragment identifier.
+        if (annotation.propertyUrl != null) {
+            return valueFactory.createIRI(annotation.propertyUrl);
+        } else {
+            return valueFactory.createIRI(
+                    tableAnnotation.url + "#" + annotation.name);
+        }
+    }
+
+    /**
+     * @param predicate Predicate computed by {@link #predicate}.
+     */
+    public void onCell(
+            CellAnnotation annotation, IRI predicate,
+            Collection<Value> values) {
         // 4.6.8 ... For each cell in the current row where the suppress output
         // annotation for the column associated with that cell is false:
 
@@ -198,17 +236,7 @@ public class CsvwToRdf {
             collector.add(row, HAS_DESCRIBES, cell);
         }
 
-        // 4.6.8.3 If the value of property URL for the cell is not null
-        // then predicate P takes the value of property URL.
-        // Else, predicate P is constructed by appending the value of the name
-        // annotation for the column associated with the cell to the
-        // tabular data file URL as a fragment identifier.
-        String predicate;
-        if (annotation.propertyUrl != null) {
-            predicate = annotation.propertyUrl;
-        } else {
-            predicate = tableAnnotation.url + "#" + annotation.name;
-        }
+        // 4.6.8.3 Predicate P is given.
 
         // 4.6.8.4 If the value URL for the current cell is not null, then
         // value URL identifies a node V_url that is related the current subject
@@ -1,5 +1,6 @@
 package cz.gov.data.csvw;
 
+import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Resource;
 import org.eclipse.rdf4j.model.Value;
 
@@ -11,4 +12,6 @@ public interface RdfCollector {
 
     void add(Resource subject, String predicate, Value object);
 
+    void add(Resource subject, IRI predicate, Value object);
+
 }
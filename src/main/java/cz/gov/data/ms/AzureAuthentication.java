@@ -1,15 +1,42 @@
 package cz.gov.data.ms;
 
+import com.azure.core.credential.TokenCredential;
 import com.azure.identity.ClientSecretCredentialBuilder;
 import com.azure.identity.UsernamePasswordCredentialBuilder;
+import com.microsoft.graph.core.authentication.AzureIdentityAuthenticationProvider;
+import com.microsoft.graph.core.requests.GraphClientFactory;
+import com.microsoft.graph.core.requests.options.GraphClientOption;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
-
+import com.microsoft.kiota.authentication.AnonymousAuthenticationProvider;
+import cz.gov.data.ms.http.MetricsInterceptor;
+import cz.gov.data.ms.http.ServerRedirect;
+import cz.gov.data.ms.http.ThrottlingLimiter;
+import okhttp3.OkHttpClient;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class AzureAuthentication {
 
     private GraphServiceClient graphClient = null;
 
+    /**
+     * Shared by all requests of the client.
+     */
+    private ThrottlingLimiter limiter = new ThrottlingLimiter();
+
+    /**
+     * File to store access tokens in, null to keep them in memory only.
+     */
+    private Path tokenCache = null;
+
+    /**
+     * When set, requests for Graph and for tokens go to this server.
+     */
+    private ServerRedirect redirect = null;
+
     /**
      * ID aplikace (klienta), application overview
      */
@@ -29,6 +56,33 @@ public class AzureAuthentication {
         return graphClient;
     }
 
+    public ThrottlingLimiter limiter() {
+        return limiter;
+    }
+
+    /**
+     * Must be called before authentication.
+     */
+    public void setLimiter(ThrottlingLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Must be called before authentication.
+     */
+    public void setTokenCache(Path tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    /**
+     * Must be called before authentication. Send all requests, including
+     * requests for tokens, to the given server, e.g. "http://127.0.0.1:80".
+     * Used by the training run.
+     */
+    public void setRedirect(String serverUrl) {
+        this.redirect = new ServerRedirect(serverUrl);
+    }
+
     public void authenticateAsUser(String username, String password, String[] scopes) {
         // https://learn.microsoft.com/en-us/graph/sdks/choose-authentication-providers?tabs=java#usernamepassword-provider
         // Application must have "Povolit toky veřejných klientů" turn on.
@@ -59,18 +113,21 @@ public class AzureAuthentication {
 
     // https://learn.microsoft.com/en-us/graph/sdks/choose-authentication-providers?tabs=java#usernamepassword-provider
     protected GraphServiceClient createUserTokenProvider(String username, String password, String[] scopes) {
-        var credential = new UsernamePasswordCredentialBuilder()
+        var builder = new UsernamePasswordCredentialBuilder()
                 .clientId(applicationId)
                 .tenantId(tenantId)
                 .username(username)
-                .password(password)
-                .build();
+                .password(password);
+        if (redirect != null) {
+            builder.addPolicy(redirect);
+        }
+        var credential = builder.build();
 
         if (credential == null) {
             throw new RuntimeException("Credentials are null!");
         }
 
-        return new GraphServiceClient(credential, scopes);
+        return createGraphClient(credential, scopes);
     }
 
     public void authenticateAsApplication(String secret) {
@@ -82,18 +139,67 @@ public class AzureAuthentication {
 
     // https://learn.microsoft.com/en-us/graph/sdks/choose-authentication-providers?tabs=java#using-a-client-secret-2
     protected GraphServiceClient createApplicationTokenProvider(String secret) {
-        var credential = new ClientSecretCredentialBuilder()
+        var builder = new ClientSecretCredentialBuilder()
                 .clientId(applicationId)
                 .tenantId(tenantId)
-                .clientSecret(secret)
-                .build();
+                .clientSecret(secret);
+        if (redirect != null) {
+            builder.addPolicy(redirect);
+        }
+        var credential = builder.build();
 
         if (credential == null) {
             throw new RuntimeException("Credentials are null!");
         }
 
         String[] scopes = new String[] {"https://graph.microsoft.com/.default"};
-        return new GraphServiceClient(credential, scopes);
+        // Token from the cache is used, or requested while we prepare
+        // the client, so the first request does not need to wait.
+        var cachedCredential = CachedTokenCredential.create(
+                credential, tokenCache, secret, tenantId + "/" + applicationId);
+        cachedCredential.prefetch(scopes);
+        return createGraphClient(cachedCredential, scopes);
+    }
+
+    /**
+     * Connect to a Graph compatible service without authentication,
+     * e.g. a local stand-in used for testing.
+     *
+     * @param baseUrl URL including the version, e.g. "http://host/v1.0".
+     */
+    public void connectToEndpoint(String baseUrl) {
+        var client = new GraphServiceClient(
+                new AnonymousAuthenticationProvider(), createHttpClient());
+        client.getRequestAdapter().setBaseUrl(baseUrl);
+        this.graphClient = client;
+    }
+
+    /**
+     * Without explicit allowed hosts the provider sends the token only
+     * to the Graph national cloud hosts, not to redirected downloads.
+     */
+    protected GraphServiceClient createGraphClient(
+            TokenCredential credential, String[] scopes) {
+        var authenticationProvider = new AzureIdentityAuthenticationProvider(
+                credential, new String[0], scopes);
+        return new GraphServiceClient(
+                authenticationProvider, createHttpClient());
+    }
+
+    /**
+     * Use default Graph middleware followed by the limiter and metrics,
+     * so they see every retry.
+     */
+    protected OkHttpClient createHttpClient() {
+        var option = new GraphClientOption();
+        var interceptors = new ArrayList<>(Arrays.asList(
+                GraphClientFactory.createDefaultGraphInterceptors(option)));
+        interceptors.add(limiter);
+        interceptors.add(new MetricsInterceptor());
+        if (redirect != null) {
+            interceptors.add(redirect);
+        }
+        return GraphClientFactory.create(option, interceptors).build();
     }
 
 }
@@ -0,0 +1,342 @@
+package cz.gov.data.ms;
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps access tokens in memory and optionally in an encrypted file,
+ * so following runs do not need to ask for a new token. Tokens are
+ * refreshed in the background before they expire.
+ * <p>
+ * The file is encrypted using AES-GCM with a key derived from the
+ * application secret, tenant and application identifier.
+ * <p>
+ * Use {@link #create} to create an instance with tokens from the file.
+ */
+public class CachedTokenCredential implements TokenCredential {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachedTokenCredential.class);
+
+    /**
+     * Token expiring sooner than this is not used.
+     */
+    protected static final Duration EXPIRATION_MARGIN = Duration.ofMinutes(2);
+
+    /**
+     * Token is refreshed this long before it expires.
+     */
+    protected static final Duration REFRESH_AHEAD = Duration.ofMinutes(10);
+
+    /**
+     * Wait time before next attempt when refresh fails.
+     */
+    protected static final Duration REFRESH_RETRY = Duration.ofMinutes(1);
+
+    private static final int FILE_VERSION = 2;
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH = 128;
+
+    private static final int KEY_ITERATIONS = 10000;
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+
+    /**
+     * Tokens differ not only by scopes, a token requested for other
+     * tenant or with claims must not be used for other requests.
+     * Tenant and claims are null when not set.
+     */
+    protected record CacheKey(String scopes, String tenant, String claims) {
+
+        static CacheKey of(TokenRequestContext request) {
+            return new CacheKey(String.join(" ", request.getScopes()),
+                    request.getTenantId(), request.getClaims());
+        }
+
+        TokenRequestContext toRequest() {
+            return new TokenRequestContext()
+                    .addScopes(scopes.split(" "))
+                    .setTenantId(tenant)
+                    .setClaims(claims);
+        }
+
+    }
+
+    protected final TokenCredential delegate;
+
+    /**
+     * Null when tokens are kept in memory only.
+     */
+    protected final Path path;
+
+    protected final SecretKey key;
+
+    protected final Map<CacheKey, AccessToken> tokens = new ConcurrentHashMap<>();
+
+    protected final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "token-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    protected final SecureRandom random = new SecureRandom();
+
+    /**
+     * Create credential and load tokens from the file.
+     *
+     * @param path File to store tokens in, null for in-memory only.
+     * @param secret Used together with salt to derive encryption key.
+     */
+    public static CachedTokenCredential create(
+            TokenCredential delegate, Path path, String secret, String salt) {
+        var result = new CachedTokenCredential(delegate, path, secret, salt);
+        result.load();
+        return result;
+    }
+
+    protected CachedTokenCredential(
+            TokenCredential delegate, Path path, String secret, String salt) {
+        this.delegate = delegate;
+        this.path = path;
+        this.key = path == null ? null : deriveKey(secret, salt);
+    }
+
+    protected static SecretKey deriveKey(String secret, String salt) {
+        try {
+            var factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            var spec = new PBEKeySpec(secret.toCharArray(),
+                    salt.getBytes(StandardCharsets.UTF_8),
+                    KEY_ITERATIONS, 256);
+            return new SecretKeySpec(
+                    factory.generateSecret(spec).getEncoded(), "AES");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Can't derive key.", ex);
+        }
+    }
+
+    @Override
+    public Mono<AccessToken> getToken(TokenRequestContext request) {
+        return Mono.fromCallable(() -> getTokenSync(request));
+    }
+
+    @Override
+    public AccessToken getTokenSync(TokenRequestContext request) {
+        var cacheKey = CacheKey.of(request);
+        AccessToken token = tokens.get(cacheKey);
+        if (isUsable(token)) {
+            return token;
+        }
+        synchronized (this) {
+            token = tokens.get(cacheKey);
+            if (isUsable(token)) {
+                return token;
+            }
+            return refresh(cacheKey);
+        }
+    }
+
+    /**
+     * Make sure there is a valid token, the token is requested in the
+     * background so the caller can continue with other work.
+     */
+    public void prefetch(String[] scopes) {
+        var cacheKey = new CacheKey(String.join(" ", scopes), null, null);
+        AccessToken token = tokens.get(cacheKey);
+        if (isUsable(token)) {
+            scheduleRefresh(cacheKey, token);
+            return;
+        }
+        scheduler.execute(() -> {
+            try {
+                getTokenSync(cacheKey.toRequest());
+            } catch (RuntimeException ex) {
+                LOG.warn("Can't prefetch token.", ex);
+            }
+        });
+    }
+
+    protected static boolean isUsable(AccessToken token) {
+        return token != null && token.getExpiresAt().isAfter(
+                OffsetDateTime.now().plus(EXPIRATION_MARGIN));
+    }
+
+    protected synchronized AccessToken refresh(CacheKey cacheKey) {
+        var token = delegate.getTokenSync(cacheKey.toRequest());
+        tokens.put(cacheKey, token);
+        save();
+        scheduleRefresh(cacheKey, token);
+        return token;
+    }
+
+    protected void scheduleRefresh(CacheKey cacheKey, AccessToken token) {
+        Duration delay = Duration.between(
+                OffsetDateTime.now(),
+                token.getExpiresAt().minus(REFRESH_AHEAD));
+        if (delay.isNegative()) {
+            delay = Duration.ZERO;
+        }
+        scheduler.schedule(() -> refreshInBackground(cacheKey, token),
+                delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    protected void refreshInBackground(
+            CacheKey cacheKey, AccessToken previous) {
+        if (tokens.get(cacheKey) != previous) {
+            // Token was already replaced, so is its refresh.
+            return;
+        }
+        try {
+            refresh(cacheKey);
+            LOG.debug("Token refreshed.");
+        } catch (RuntimeException ex) {
+            LOG.warn("Can't refresh token, will try again.", ex);
+            scheduler.schedule(() -> refreshInBackground(cacheKey, previous),
+                    REFRESH_RETRY.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    protected void load() {
+        if (path == null || !Files.exists(path)) {
+            return;
+        }
+        try {
+            byte[] content = Files.readAllBytes(path);
+            var cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_LENGTH, content, 0, IV_LENGTH));
+            byte[] plain = cipher.doFinal(
+                    content, IV_LENGTH, content.length - IV_LENGTH);
+            var input = new DataInputStream(new ByteArrayInputStream(plain));
+            if (input.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = input.readInt();
+            for (int index = 0; index < count; ++index) {
+                var cacheKey = new CacheKey(input.readUTF(),
+                        readOptional(input), readOptional(input));
+                String token = input.readUTF();
+                var expiresAt = OffsetDateTime.ofInstant(
+                        Instant.ofEpochSecond(input.readLong()),
+                        ZoneOffset.UTC);
+                var accessToken = new AccessToken(token, expiresAt);
+                if (isUsable(accessToken)) {
+                    tokens.put(cacheKey, accessToken);
+                }
+            }
+        } catch (IOException | GeneralSecurityException ex) {
+            // For example the secret was changed.
+            LOG.info("Ignoring token cache '{}'.", path, ex);
+            tokens.clear();
+        }
+    }
+
+    protected synchronized void save() {
+        if (path == null) {
+            return;
+        }
+        try {
+            var buffer = new ByteArrayOutputStream();
+            var output = new DataOutputStream(buffer);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(tokens.size());
+            for (var entry : tokens.entrySet()) {
+                output.writeUTF(entry.getKey().scopes);
+                writeOptional(output, entry.getKey().tenant);
+                writeOptional(output, entry.getKey().claims);
+                output.writeUTF(entry.getValue().getToken());
+                output.writeLong(
+                        entry.getValue().getExpiresAt().toEpochSecond());
+            }
+            output.flush();
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            var cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_LENGTH, iv));
+            byte[] encrypted = cipher.doFinal(buffer.toByteArray());
+            //
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Path workingPath = path.resolveSibling(
+                    path.getFileName() + ".tmp");
+            // Tokens are written only into a file no one else can read.
+            createPrivateFile(workingPath);
+            try (var stream = Files.newOutputStream(
+                    workingPath, StandardOpenOption.WRITE)) {
+                stream.write(iv);
+                stream.write(encrypted);
+            }
+            Files.move(workingPath, path,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException ex) {
+            // Cache is an optimization, we can continue without it.
+            LOG.warn("Can't save token cache '{}'.", path, ex);
+        }
+    }
+
+    /**
+     * Null is written as an empty string.
+     */
+    protected static void writeOptional(DataOutputStream output, String value)
+            throws IOException {
+        output.writeUTF(value == null ? "" : value);
+    }
+
+    protected static String readOptional(DataInputStream input)
+            throws IOException {
+        String value = input.readUTF();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Create empty file readable only by the owner.
+     */
+    protected static void createPrivateFile(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            // Not a POSIX file system.
+            Files.createFile(path);
+        }
+    }
+
+}
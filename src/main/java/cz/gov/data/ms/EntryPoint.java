@@ -1,7 +1,15 @@
 package cz.gov.data.ms;
 
+import cz.gov.data.ms.action.DownloadBatch;
 import cz.gov.data.ms.action.DownloadSharepointDirectory;
 import cz.gov.data.ms.action.DownloadSharepointList;
+import cz.gov.data.ms.action.SyncApi;
+import cz.gov.data.ms.action.SyncService;
+import cz.gov.data.ms.http.ThrottlingLimiter;
+import cz.gov.data.ms.metrics.Metrics;
+import cz.gov.data.ms.metrics.MetricsServer;
+import cz.gov.data.ms.sharepoint.ResolutionCache;
+import cz.gov.data.rdf.OutputFormat;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -10,67 +18,225 @@ import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CountDownLatch;
 
 public class EntryPoint {
 
     private static final Logger LOG = LoggerFactory.getLogger(EntryPoint.class);
 
+    /**
+     * Name of the file with resolution cache in the cache directory.
+     */
+    protected static final String RESOLUTION_CACHE_FILE = "resolution-cache.tsv";
+
+    /**
+     * Name of the file with encrypted access tokens in the cache directory.
+     */
+    protected static final String TOKEN_CACHE_FILE = "token-cache.bin";
+
     protected AzureAuthentication authentication;
 
     protected String siteIdentifier;
 
+    /**
+     * Process exit code, non-zero when the command failed.
+     */
+    protected int exitCode = 0;
+
+    /**
+     * Released once the command is finished, so a shutdown hook can wait
+     * for the service to stop.
+     */
+    protected final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Output file with metrics in the Prometheus text format.
+     */
+    protected Path metricsPath;
+
+    /**
+     * Output file with JSON summary of the run.
+     */
+    protected Path metricsSummaryPath;
+
     public static void main(String[] args) {
-        (new EntryPoint()).execute(args);
+        var entryPoint = new EntryPoint();
+        entryPoint.execute(args);
+        if (entryPoint.exitCode != 0) {
+            System.exit(entryPoint.exitCode);
+        }
     }
 
     public void execute(String[] args) {
+        try {
+            executeCommand(args);
+        } finally {
+            // The shutdown hook waits for this, also when the command fails.
+            finished.countDown();
+        }
+    }
+
+    protected void executeCommand(String[] args) {
         if (args.length < 1) {
-            System.out.println("You must specify a command: download-list, download-directory.");
+            System.out.println("You must specify a command: download-list, download-directory, batch, serve.");
         }
         String command = args[0];
         if ("download-list".equals(command)) {
             runDownloadList(Arrays.copyOfRange(args, 1, args.length));
         } else if ("download-directory".equals(command)) {
             runDownloadDirectory(Arrays.copyOfRange(args, 1, args.length));
+        } else if ("batch".equals(command)) {
+            runBatch(Arrays.copyOfRange(args, 1, args.length));
+        } else if ("serve".equals(command)) {
+            runServe(Arrays.copyOfRange(args, 1, args.length));
         } else {
             System.out.println("Unknown command.");
         }
+        if (authentication != null) {
+            var limiter = authentication.limiter();
+            LOG.info("Requests were throttled {} times, final limit {}.",
+                    limiter.getThrottleCount(), limiter.getLimit());
+        }
+        writeMetrics();
+    }
+
+    protected void writeMetrics() {
+        var metrics = Metrics.getInstance();
+        try {
+            if (metricsPath != null) {
+                metrics.writePrometheus(metricsPath);
+            }
+            if (metricsSummaryPath != null) {
+                metrics.writeSummary(metricsSummaryPath);
+            }
+        } catch (IOException ex) {
+            LOG.error("Can not write metrics.", ex);
+            exitCode = 1;
+        }
     }
 
     public void runDownloadList(String[] args) {
         Options options = new Options();
         addCommonOptions(options);
-        options.addRequiredOption(null, "list", true, "List identifier.");
-        options.addRequiredOption(null, "output", true, "Output file.");
-        options.addRequiredOption(null, "base", true, "Base URL.");
+        options.addRequiredOption(null, "list", true,
+                "List identifier, can be used multiple times.");
+        options.addRequiredOption(null, "output", true,
+                "Output file, one for each list.");
+        options.addRequiredOption(null, "base", true,
+                "Base URL, one for all lists or one for each list.");
+        options.addOption(null, "incremental", false,
+                "Download only changes since the last run.");
+        options.addOption(null, "columns", true,
+                "Comma separated names of columns to download.");
+        options.addOption(null, "skip-system-columns", false,
+                "Ignore hidden and read-only columns.");
+        options.addOption(null, "page-size", true,
+                "Number of items requested in a single page.");
+        options.addOption(null, "stream-items", false,
+                "Decode pages of items without the Graph SDK model.");
+        options.addOption(null, "format", true,
+                "Output format: trig, nquads, ntriples or binary.");
+        options.addOption(null, "conversion-parallelism", true,
+                "Number of threads converting rows, nquads and ntriples only.");
+        options.addOption(null, "identify-rows", false,
+                "Identify rows by IRIs derived from item identifiers.");
+        options.addOption(null, "patch", false,
+                "Write changes since the last run as SPARQL Update.");
         //
         CommandLine commandLine = parseCommandLine(options, args);
         loadCommonOptions(commandLine);
         //
-        String list = commandLine.getOptionValue("list");
-        Path output = Path.of(commandLine.getOptionValue("output"));
-        String baseUrl = commandLine.getOptionValue("base");
+        var lists = Arrays.asList(commandLine.getOptionValues("list"));
+        var outputs = Arrays.stream(commandLine.getOptionValues("output"))
+                .map(Path::of).toList();
+        var baseUrls = Arrays.asList(commandLine.getOptionValues("base"));
+        if (outputs.size() != lists.size()) {
+            System.out.println("There must be one output for each list.");
+            exitCode = 1;
+            return;
+        }
+        if (baseUrls.size() == 1) {
+            baseUrls = Collections.nCopies(lists.size(), baseUrls.getFirst());
+        } else if (baseUrls.size() != lists.size()) {
+            System.out.println(
+                    "There must be one base URL or one for each list.");
+            exitCode = 1;
+            return;
+        }
+        var configuration = new DownloadSharepointList.Configuration();
+        configuration.incremental = commandLine.hasOption("incremental");
+        if (commandLine.hasOption("format")) {
+            String format = commandLine.getOptionValue("format");
+            try {
+                configuration.format = OutputFormat.parse(format);
+            } catch (IllegalArgumentException ex) {
+                System.out.println("Unknown format '" + format
+                        + "', supported formats are: "
+                        + OutputFormat.names() + ".");
+                exitCode = 1;
+                return;
+            }
+        }
+        configuration.conversionParallelism = getIntOption(commandLine,
+                "conversion-parallelism", configuration.conversionParallelism);
+        configuration.identifyRows = commandLine.hasOption("identify-rows");
+        configuration.patch = commandLine.hasOption("patch");
+        if (commandLine.hasOption("columns")) {
+            configuration.list.columns = new LinkedHashSet<>(Arrays.asList(
+                    commandLine.getOptionValue("columns").split(",")));
+        }
+        configuration.list.skipSystemColumns =
+                commandLine.hasOption("skip-system-columns");
+        if (commandLine.hasOption("page-size")) {
+            configuration.list.pageSize = getIntOption(
+                    commandLine, "page-size", 0);
+        }
+        configuration.list.streamItems = commandLine.hasOption("stream-items");
         //
         try {
-            DownloadSharepointList.downloadContent(
-                    authentication, siteIdentifier, list, baseUrl, output);
+            if (!DownloadSharepointList.downloadContent(
+                    authentication, siteIdentifier, lists, baseUrls, outputs,
+                    configuration)) {
+                exitCode = 1;
+            }
         } catch (Throwable t) {
             LOG.error("Failed to download SharePoint list.", t);
+            exitCode = 1;
         }
     }
 
     protected void addCommonOptions(Options options) {
+        addAuthenticationOptions(options);
+        options.addRequiredOption(
+                null, "site", true, "Site identifier.");
+    }
+
+    protected void addAuthenticationOptions(Options options) {
         options.addOption(
                 null, "application", true, "Application identification.");
         options.addOption(
                 null, "tenant", true, "Tenant identification.");
         options.addOption(
                 null, "secret", true, "Application secret.");
-        //
-        options.addRequiredOption(
-                null, "site", true, "Site identifier.");
+        options.addOption(null, "max-requests", true,
+                "Maximum number of requests to Graph API at the same time.");
+        options.addOption(null, "cache", true,
+                "Directory to store access tokens and resolved identifiers.");
+        options.addOption(null, "metrics", true,
+                "Output file with metrics in the Prometheus text format.");
+        options.addOption(null, "metrics-summary", true,
+                "Output JSON file with summary of the run.");
+    }
+
+    protected void addResolutionCacheOptions(Options options) {
+        options.addOption(null, "cache-ttl", true,
+                "How long, in minutes, are resolved identifiers valid.");
     }
 
     protected CommandLine parseCommandLine(Options options, String[] args) {
@@ -90,12 +256,33 @@ public class EntryPoint {
         String tenant = getOption(
                 commandLine, "tenant", "MS_TENANT");
         authentication = new AzureAuthentication(application, tenant);
+        if (commandLine.hasOption("max-requests")) {
+            int maxRequests = getIntOption(commandLine, "max-requests", 0);
+            authentication.setLimiter(new ThrottlingLimiter(
+                    Math.min(ThrottlingLimiter.DEFAULT_INITIAL_LIMIT,
+                            maxRequests),
+                    maxRequests));
+        }
+
+        String cache = getOption(commandLine, "cache", "MS_CACHE");
+        if (cache != null) {
+            authentication.setTokenCache(
+                    Path.of(cache).resolve(TOKEN_CACHE_FILE));
+        }
 
         String secret = getOption(
                 commandLine, "secret", "MS_SECRET");
         authentication.authenticateAsApplication(secret);
 
         siteIdentifier = commandLine.getOptionValue("site");
+
+        if (commandLine.hasOption("metrics")) {
+            metricsPath = Path.of(commandLine.getOptionValue("metrics"));
+        }
+        if (commandLine.hasOption("metrics-summary")) {
+            metricsSummaryPath = Path.of(
+                    commandLine.getOptionValue("metrics-summary"));
+        }
     }
 
     protected String getOption(
@@ -107,6 +294,49 @@ public class EntryPoint {
         return result;
     }
 
+    /**
+     * Numeric option, an invalid value is reported as a usage error.
+     */
+    protected int getIntOption(
+            CommandLine commandLine, String argument, int defaultValue) {
+        long result = getLongOption(commandLine, argument, defaultValue);
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            exitOnInvalidOption(argument,
+                    commandLine.getOptionValue(argument), "a number");
+        }
+        return (int) result;
+    }
+
+    protected int getPortOption(CommandLine commandLine, String argument) {
+        int result = getIntOption(commandLine, argument, 0);
+        if (result < 0 || result > 65535) {
+            exitOnInvalidOption(argument,
+                    commandLine.getOptionValue(argument), "a port number");
+        }
+        return result;
+    }
+
+    protected long getLongOption(
+            CommandLine commandLine, String argument, long defaultValue) {
+        String value = commandLine.getOptionValue(argument);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            exitOnInvalidOption(argument, value, "a number");
+            return defaultValue;
+        }
+    }
+
+    protected void exitOnInvalidOption(
+            String argument, String value, String expected) {
+        System.out.println("Invalid value '" + value + "' of option '--"
+                + argument + "', " + expected + " is expected.");
+        System.exit(1);
+    }
+
     public void runDownloadDirectory(String[] args) {
         Options options = new Options();
         addCommonOptions(options);
@@ -114,18 +344,202 @@ public class EntryPoint {
                 "Path starting with drive name, followed by directory names. " +
                         "Use '/' as a separator.");
         options.addRequiredOption(null, "output", true, "Output directory.");
+        options.addOption(null, "parallelism", true,
+                "Number of files downloaded at the same time, default 4.");
+        options.addOption(null, "mirror", false,
+                "Download only files changed since the last run.");
+        options.addOption(null, "delete", false,
+                "In mirror mode delete files removed from the drive.");
+        options.addOption(null, "recursive", false,
+                "Download also content of sub-folders.");
+        addResolutionCacheOptions(options);
+        options.addOption(null, "range-threshold", true,
+                "Files of this size in MB or larger are downloaded in ranges.");
+        options.addOption(null, "range-parallelism", true,
+                "Number of ranges of a file downloaded at the same time.");
+        options.addOption(null, "report", true,
+                "Output JSON file with result and hash of each file.");
+        options.addOption(null, "incremental", false,
+                "Skip files with the same hash as in the report.");
         //
         CommandLine commandLine = parseCommandLine(options, args);
         loadCommonOptions(commandLine);
         //
         String path = commandLine.getOptionValue("path");
         Path output = Path.of(commandLine.getOptionValue("output"));
+        var configuration = new DownloadSharepointDirectory.Configuration();
+        configuration.parallelism = getIntOption(
+                commandLine, "parallelism", 4);
+        configuration.mirror = commandLine.hasOption("mirror");
+        configuration.deleteRemoved = commandLine.hasOption("delete");
+        configuration.recursive = commandLine.hasOption("recursive");
+        configuration.resolutionCache = loadResolutionCache(commandLine);
+        if (commandLine.hasOption("range-threshold")) {
+            configuration.file.rangeThreshold = 1024L * 1024 * getLongOption(
+                    commandLine, "range-threshold", 0);
+        }
+        if (commandLine.hasOption("report")) {
+            configuration.reportPath = Path.of(
+                    commandLine.getOptionValue("report"));
+        }
+        configuration.incremental = commandLine.hasOption("incremental");
+        configuration.file.rangeParallelism = getIntOption(commandLine,
+                "range-parallelism", configuration.file.rangeParallelism);
         //
         try {
-            DownloadSharepointDirectory.downloadContent(
-                    authentication, siteIdentifier, path, output);
+            if (!DownloadSharepointDirectory.downloadContent(
+                    authentication, siteIdentifier, path, output,
+                    configuration)) {
+                exitCode = 1;
+            }
         } catch (Throwable t) {
             LOG.error("Failed to download SharePoint directory.", t);
+            exitCode = 1;
+        }
+    }
+
+    protected ResolutionCache loadResolutionCache(CommandLine commandLine) {
+        String cache = getOption(commandLine, "cache", "MS_CACHE");
+        if (cache == null) {
+            return ResolutionCache.inMemory();
+        }
+        Duration ttl = ResolutionCache.DEFAULT_TTL;
+        if (commandLine.hasOption("cache-ttl")) {
+            ttl = Duration.ofMinutes(
+                    getLongOption(commandLine, "cache-ttl", 0));
+        }
+        return ResolutionCache.load(
+                Path.of(cache).resolve(RESOLUTION_CACHE_FILE), ttl);
+    }
+
+    public void runBatch(String[] args) {
+        Options options = new Options();
+        addAuthenticationOptions(options);
+        addResolutionCacheOptions(options);
+        options.addOption(null, "site", true,
+                "Site identifier, used for jobs without a site.");
+        options.addRequiredOption(null, "manifest", true,
+                "JSON file with jobs to run.");
+        options.addOption(null, "report", true,
+                "Output JSON file with result of each job.");
+        options.addOption(null, "concurrency", true,
+                "Maximum number of jobs running at the same time.");
+        options.addOption(null, "metrics-port", true,
+                "Serve metrics on this port of localhost during the run.");
+        //
+        CommandLine commandLine = parseCommandLine(options, args);
+        loadCommonOptions(commandLine);
+        //
+        MetricsServer metricsServer = null;
+        if (commandLine.hasOption("metrics-port")) {
+            int port = getPortOption(commandLine, "metrics-port");
+            try {
+                metricsServer = new MetricsServer(Metrics.getInstance(), port);
+                metricsServer.start();
+            } catch (IOException ex) {
+                LOG.error("Can not serve metrics on port {}.", port, ex);
+                exitCode = 1;
+                return;
+            }
+        }
+        try {
+            runBatch(commandLine);
+        } finally {
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+        }
+    }
+
+    protected void runBatch(CommandLine commandLine) {
+        var batch = new DownloadBatch(authentication, siteIdentifier,
+                loadResolutionCache(commandLine));
+        DownloadBatch.Manifest manifest;
+        Path manifestPath = Path.of(commandLine.getOptionValue("manifest"));
+        try {
+            manifest = batch.loadManifest(manifestPath);
+        } catch (IOException ex) {
+            LOG.error("Can not read manifest '{}'.", manifestPath, ex);
+            exitCode = 1;
+            return;
+        }
+        manifest.concurrency = getIntOption(
+                commandLine, "concurrency", manifest.concurrency);
+        var results = batch.execute(manifest);
+        long failed = results.stream()
+                .filter(result -> !result.isSuccess())
+                .count();
+        LOG.info("Finished {} jobs, {} failed.", results.size(), failed);
+        if (failed > 0) {
+            exitCode = 1;
+        }
+        if (commandLine.hasOption("report")) {
+            Path reportPath = Path.of(commandLine.getOptionValue("report"));
+            try {
+                batch.writeReport(results, reportPath);
+            } catch (IOException ex) {
+                LOG.error("Can not write report '{}'.", reportPath, ex);
+                exitCode = 1;
+            }
+        }
+    }
+
+    public void runServe(String[] args) {
+        Options options = new Options();
+        addAuthenticationOptions(options);
+        addResolutionCacheOptions(options);
+        options.addOption(null, "site", true,
+                "Site identifier, used for jobs without a site.");
+        options.addRequiredOption(null, "manifest", true,
+                "JSON file with jobs and their schedules.");
+        options.addRequiredOption(null, "port", true,
+                "Port of localhost to serve the API and metrics on.");
+        //
+        CommandLine commandLine = parseCommandLine(options, args);
+        loadCommonOptions(commandLine);
+        //
+        var batch = new DownloadBatch(authentication, siteIdentifier,
+                loadResolutionCache(commandLine));
+        DownloadBatch.Manifest manifest;
+        Path manifestPath = Path.of(commandLine.getOptionValue("manifest"));
+        try {
+            manifest = batch.loadManifest(manifestPath);
+        } catch (IOException ex) {
+            LOG.error("Can not read manifest '{}'.", manifestPath, ex);
+            exitCode = 1;
+            return;
+        }
+        int port = getPortOption(commandLine, "port");
+        SyncService service;
+        try {
+            service = new SyncService(batch, manifest);
+        } catch (IllegalArgumentException ex) {
+            LOG.error("Invalid manifest '{}'.", manifestPath, ex);
+            exitCode = 1;
+            return;
+        }
+        var stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopped.countDown();
+            // Wait for running jobs and for metrics to be written.
+            try {
+                finished.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        try (service;
+             var server = new MetricsServer(Metrics.getInstance(), port)) {
+            server.addHandler(SyncApi.PATH, new SyncApi(service));
+            server.start();
+            service.start();
+            stopped.await();
+            LOG.info("Stopping, waiting for running jobs.");
+        } catch (IOException ex) {
+            LOG.error("Can not serve on port {}.", port, ex);
+            exitCode = 1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -0,0 +1,440 @@
+package cz.gov.data.ms;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cz.gov.data.ms.action.DownloadSharepointDirectory;
+import cz.gov.data.ms.action.DownloadSharepointList;
+import cz.gov.data.ms.metrics.Metrics;
+import cz.gov.data.ms.sharepoint.QuickXorHash;
+import cz.gov.data.rdf.OutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Training run for class data sharing and native image: authenticates
+ * as an application, downloads a small list and writes it in all
+ * formats, then downloads a directory with a file large enough to be
+ * downloaded in ranges. All requests, including requests for tokens, go
+ * to a local server returning canned responses. No connection to
+ * Microsoft is made.
+ * <p>
+ * Run with "-XX:ArchiveClassesAtExit" to create an AppCDS archive, or
+ * with the native image agent to collect reflection configuration.
+ */
+public class Training {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Training.class);
+
+    private static final String TENANT = "training-tenant";
+
+    private static final String APPLICATION = "training-application";
+
+    private static final String TOKEN = "training-token";
+
+    private static final String SITE = "training-site";
+
+    private static final String LIST = "training-list";
+
+    private static final String DRIVE = "training-drive";
+
+    private static final String DRIVE_NAME = "Documents";
+
+    private static final String DIRECTORY = "training";
+
+    /**
+     * Links in responses point to Graph, as they do in production, the
+     * client redirects them to the local server.
+     */
+    private static final String GRAPH_URL = "https://graph.microsoft.com/v1.0";
+
+    private static final int ROWS = 200;
+
+    private static final int PAGE_SIZE = 50;
+
+    private static final int RANGE_SIZE = 1024 * 1024;
+
+    /**
+     * The last file is downloaded in ranges.
+     */
+    private static final int[] FILE_SIZES = {16 * 1024, 3 * RANGE_SIZE + 1};
+
+    private static final String FILE_PREFIX = "file-";
+
+    /**
+     * Token requests, the token is requested once and then read from
+     * the token cache.
+     */
+    private static final AtomicInteger TOKEN_REQUESTS = new AtomicInteger();
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("ms-adapter-training");
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1.0/", Training::respond);
+        server.createContext("/download/", Training::serveContent);
+        server.createContext("/", Training::respondToIdentity);
+        server.start();
+        try {
+            new Training().run(
+                    "http://127.0.0.1:" + server.getAddress().getPort(),
+                    directory);
+        } finally {
+            server.stop(0);
+            deleteDirectory(directory);
+        }
+    }
+
+    protected void run(String serverUrl, Path directory) throws IOException {
+        var authentication = authenticate(serverUrl, directory);
+        boolean success = true;
+        for (OutputFormat format : OutputFormat.values()) {
+            for (boolean compress : new boolean[]{false, true}) {
+                var configuration = new DownloadSharepointList.Configuration();
+                configuration.format = format;
+                configuration.patch = true;
+                // Both ways of decoding items are used.
+                configuration.list.streamItems = compress;
+                configuration.conversionParallelism =
+                        format.isLineBased() ? 2 : 1;
+                String name = "list-" + format.name().toLowerCase()
+                        + (compress ? ".gz" : "");
+                success &= DownloadSharepointList.downloadContent(
+                        authentication, SITE, LIST, "http://localhost/list",
+                        directory.resolve(name), configuration);
+            }
+        }
+        // The second run skips unchanged files using the report.
+        for (boolean incremental : new boolean[]{false, true}) {
+            var configuration = new DownloadSharepointDirectory.Configuration();
+            configuration.file.rangeThreshold = RANGE_SIZE;
+            configuration.file.rangeSize = RANGE_SIZE;
+            configuration.reportPath = directory.resolve("report.json");
+            configuration.incremental = incremental;
+            success &= DownloadSharepointDirectory.downloadContent(
+                    authentication, SITE, DRIVE_NAME + "/" + DIRECTORY,
+                    Files.createDirectories(directory.resolve("files")),
+                    configuration);
+        }
+        // Token is now read from the cache.
+        authentication = authenticate(serverUrl, directory);
+        success &= DownloadSharepointList.downloadContent(
+                authentication, SITE, LIST, "http://localhost/list",
+                directory.resolve("list-cached"),
+                new DownloadSharepointList.Configuration());
+        Metrics.getInstance().writePrometheus(directory.resolve("metrics"));
+        Metrics.getInstance().writeSummary(directory.resolve("summary.json"));
+        if (!success) {
+            throw new IllegalStateException("Training run failed.");
+        }
+        if (TOKEN_REQUESTS.get() != 1) {
+            throw new IllegalStateException("Expected one token request, got "
+                    + TOKEN_REQUESTS.get() + ".");
+        }
+        LOG.info("Training run finished.");
+    }
+
+    protected AzureAuthentication authenticate(
+            String serverUrl, Path directory) {
+        var authentication = new AzureAuthentication(APPLICATION, TENANT);
+        authentication.setRedirect(serverUrl);
+        authentication.setTokenCache(
+                directory.resolve(EntryPoint.TOKEN_CACHE_FILE));
+        authentication.authenticateAsApplication("training-secret");
+        return authentication;
+    }
+
+    /**
+     * Answer instance discovery and token requests of the identity client.
+     */
+    protected static void respondToIdentity(HttpExchange exchange)
+            throws IOException {
+        try (exchange) {
+            echoRequestId(exchange);
+            String path = exchange.getRequestURI().getPath();
+            String body;
+            if (path.equals("/common/discovery/instance")) {
+                body = """
+                        {"api-version": "1.1",
+                        "tenant_discovery_endpoint": "https://login.microsoftonline.com/%s/v2.0/.well-known/openid-configuration",
+                        "metadata": [{"preferred_network": "login.microsoftonline.com",
+                        "preferred_cache": "login.windows.net",
+                        "aliases": ["login.microsoftonline.com", "login.windows.net"]}]}"""
+                        .formatted(TENANT);
+            } else if (path.equals("/" + TENANT + "/oauth2/v2.0/token")
+                    && exchange.getRequestMethod().equals("POST")) {
+                TOKEN_REQUESTS.incrementAndGet();
+                body = """
+                        {"token_type": "Bearer", "expires_in": 3599,
+                        "ext_expires_in": 3599, "access_token": "%s"}"""
+                        .formatted(TOKEN);
+            } else {
+                LOG.warn("Unexpected identity request '{}'.", path);
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            sendJson(exchange, body);
+        }
+    }
+
+    protected static void respond(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            echoRequestId(exchange);
+            String authorization = exchange.getRequestHeaders()
+                    .getFirst("Authorization");
+            if (!("Bearer " + TOKEN).equals(authorization)) {
+                LOG.warn("Request without token '{}'.",
+                        exchange.getRequestURI());
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath()
+                    .substring("/v1.0".length());
+            String query = exchange.getRequestURI().getRawQuery();
+            String body;
+            if (path.endsWith("/columns")) {
+                body = columns();
+            } else if (path.endsWith("/items")) {
+                int start = 0;
+                if (query != null && query.contains("$skiptoken=")) {
+                    start = Integer.parseInt(query.substring(
+                            query.indexOf("$skiptoken=") + 11));
+                }
+                body = items(GRAPH_URL + path, start);
+            } else if (path.equals("/sites/" + SITE + "/drives")) {
+                body = """
+                        {"value": [{"id": "%s", "name": "%s"}]}"""
+                        .formatted(DRIVE, DRIVE_NAME);
+            } else if (path.equals(
+                    "/drives/" + DRIVE + "/root:/" + DIRECTORY + ":")) {
+                body = directory();
+            } else if (path.equals("/drives/" + DRIVE + "/items/"
+                    + DIRECTORY + "/children")) {
+                body = children(serverUrl(exchange));
+            } else if (path.startsWith("/drives/" + DRIVE + "/items/")) {
+                respondWithFile(exchange, path.substring(
+                        ("/drives/" + DRIVE + "/items/").length()));
+                return;
+            } else {
+                LOG.warn("Unexpected Graph request '{}'.", path);
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            sendJson(exchange, body);
+        }
+    }
+
+    /**
+     * Clients check the identifier is returned, as Microsoft services do.
+     */
+    protected static void echoRequestId(HttpExchange exchange) {
+        String requestId = exchange.getRequestHeaders()
+                .getFirst("client-request-id");
+        if (requestId != null) {
+            exchange.getResponseHeaders().set("client-request-id", requestId);
+        }
+    }
+
+    protected static String serverUrl(HttpExchange exchange) {
+        return "http://" + exchange.getRequestHeaders().getFirst("Host");
+    }
+
+    protected static void sendJson(HttpExchange exchange, String body)
+            throws IOException {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(
+                "Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, content.length);
+        exchange.getResponseBody().write(content);
+    }
+
+    protected static String columns() {
+        return """
+                {"value": [
+                  {"name": "Title", "displayName": "Title", "text": {}},
+                  {"name": "Count", "displayName": "Count", "number": {}},
+                  {"name": "Valid", "displayName": "Valid", "boolean": {}},
+                  {"name": "Date", "displayName": "Date", "dateTime": {}},
+                  {"name": "State", "displayName": "State", "choice": {}},
+                  {"name": "Tags", "displayName": "Tags", "lookup": {}}
+                ]}""";
+    }
+
+    protected static String items(String url, int start) {
+        var result = new StringBuilder("{\"value\": [");
+        int end = Math.min(start + PAGE_SIZE, ROWS);
+        for (int index = start; index < end; ++index) {
+            if (index > start) {
+                result.append(',');
+            }
+            result.append("""
+                    {"id": "%d", "fields": {"Title": "Item %d",
+                    "Count": %d.5, "Valid": %b,
+                    "Date": "2024-01-%02dT10:00:00Z", "State": "S%d",
+                    "Tags": ["a", "b", %d]}}""".formatted(
+                    index + 1, index, index, index % 2 == 0,
+                    index % 28 + 1, index % 3, index));
+        }
+        result.append(']');
+        if (end < ROWS) {
+            result.append(", \"@odata.nextLink\": \"")
+                    .append(url).append("?$skiptoken=").append(end)
+                    .append('"');
+        }
+        return result.append('}').toString();
+    }
+
+    protected static String directory() {
+        return """
+                {"id": "%s", "name": "%s", "folder": {"childCount": %d}}"""
+                .formatted(DIRECTORY, DIRECTORY, FILE_SIZES.length);
+    }
+
+    protected static String children(String serverUrl) {
+        var result = new StringBuilder("{\"value\": [");
+        for (int index = 0; index < FILE_SIZES.length; ++index) {
+            if (index > 0) {
+                result.append(',');
+            }
+            result.append(file(serverUrl, index));
+        }
+        return result.append("]}").toString();
+    }
+
+    /**
+     * File with a pre-authenticated download URL on the local server.
+     */
+    protected static String file(String serverUrl, int index) {
+        return """
+                {"id": "%s%d", "name": "file-%d.bin", "size": %d,
+                "eTag": "\\"%d,1\\"", "cTag": "\\"c:%d,1\\"",
+                "file": {"hashes": {"quickXorHash": "%s"}},
+                "@microsoft.graph.downloadUrl": "%s/download/%s%d"}"""
+                .formatted(FILE_PREFIX, index, index, FILE_SIZES[index],
+                        index, index, fileHash(FILE_SIZES[index]),
+                        serverUrl, FILE_PREFIX, index);
+    }
+
+    /**
+     * Item metadata or content, content is redirected to the download
+     * URL as Graph does.
+     */
+    protected static void respondWithFile(HttpExchange exchange, String path)
+            throws IOException {
+        boolean content = path.endsWith("/content");
+        String identifier = content ?
+                path.substring(0, path.length() - "/content".length()) : path;
+        int index = fileIndex(identifier);
+        if (index < 0) {
+            exchange.sendResponseHeaders(404, -1);
+        } else if (content) {
+            exchange.getResponseHeaders().set("Location",
+                    serverUrl(exchange) + "/download/" + identifier);
+            exchange.sendResponseHeaders(302, -1);
+        } else {
+            sendJson(exchange, file(serverUrl(exchange), index));
+        }
+    }
+
+    protected static int fileIndex(String identifier) {
+        for (int index = 0; index < FILE_SIZES.length; ++index) {
+            if (identifier.equals(FILE_PREFIX + index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Serve file content with support for ranges. The download URL is
+     * pre-authenticated, the token must not be sent here.
+     */
+    protected static void serveContent(HttpExchange exchange)
+            throws IOException {
+        try (exchange) {
+            if (exchange.getRequestHeaders().containsKey("Authorization")) {
+                LOG.warn("Token sent with a download.");
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            int index = fileIndex(exchange.getRequestURI().getPath()
+                    .substring("/download/".length()));
+            if (index < 0) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            long size = FILE_SIZES[index];
+            long start = 0;
+            long end = size - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length())
+                        .split("-");
+                start = Long.parseLong(bounds[0]);
+                if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + size);
+            }
+            exchange.getResponseHeaders().set("ETag", "\"" + index + ",1\"");
+            exchange.getResponseHeaders().set(
+                    "Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(status, end - start + 1);
+            writeContent(exchange.getResponseBody(), start, end - start + 1);
+        }
+    }
+
+    protected static void writeContent(
+            OutputStream output, long start, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        for (long position = start; position < start + length;
+             position += buffer.length) {
+            int count = (int) Math.min(buffer.length, start + length - position);
+            fillContent(buffer, position, count);
+            output.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * Content is given by the position only, so any range can be served.
+     */
+    protected static void fillContent(byte[] buffer, long position, int count) {
+        for (int index = 0; index < count; ++index) {
+            buffer[index] = (byte) (position + index);
+        }
+    }
+
+    protected static String fileHash(long size) {
+        var hash = new QuickXorHash();
+        byte[] buffer = new byte[64 * 1024];
+        for (long position = 0; position < size; position += buffer.length) {
+            int count = (int) Math.min(buffer.length, size - position);
+            fillContent(buffer, position, count);
+            hash.update(buffer, 0, count);
+        }
+        return hash.digest();
+    }
+
+    protected static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder())
+                    .toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package cz.gov.data.ms.action;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * Cron expression with five fields: minute, hour, day of month, month
+ * and day of week. Fields support "*", numbers, ranges "1-5", lists
+ * "1,3" and steps "*&#47;15". Day of week is 0-7, both 0 and 7 are Sunday.
+ * Macros "@hourly", "@daily", "@weekly" and "@monthly" are supported.
+ * <p>
+ * As in cron, when both day of month and day of week are restricted,
+ * a day matching either of them is used.
+ */
+public class CronSchedule {
+
+    /**
+     * Limit of the search for the next time, expressions like "0 0 30 2 *"
+     * never match.
+     */
+    private static final int MAX_YEARS = 5;
+
+    protected final String expression;
+
+    protected final BitSet minutes;
+
+    protected final BitSet hours;
+
+    protected final BitSet daysOfMonth;
+
+    protected final BitSet months;
+
+    protected final BitSet daysOfWeek;
+
+    protected final boolean anyDayOfMonth;
+
+    protected final boolean anyDayOfWeek;
+
+    protected CronSchedule(String expression, String[] fields) {
+        this.expression = expression;
+        this.minutes = parseField(fields[0], 0, 59);
+        this.hours = parseField(fields[1], 0, 23);
+        this.daysOfMonth = parseField(fields[2], 1, 31);
+        this.months = parseField(fields[3], 1, 12);
+        this.daysOfWeek = parseField(fields[4], 0, 7);
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        this.anyDayOfMonth = fields[2].equals("*");
+        this.anyDayOfWeek = fields[4].equals("*");
+    }
+
+    public static CronSchedule parse(String expression) {
+        String value = switch (expression.trim()) {
+            case "@hourly" -> "0 * * * *";
+            case "@daily" -> "0 0 * * *";
+            case "@weekly" -> "0 0 * * 0";
+            case "@monthly" -> "0 0 1 * *";
+            default -> expression.trim();
+        };
+        String[] fields = value.split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException(
+                    "Cron expression must have five fields: '"
+                            + expression + "'.");
+        }
+        return new CronSchedule(expression, fields);
+    }
+
+    protected static BitSet parseField(String field, int min, int max) {
+        var result = new BitSet(max + 1);
+        for (String part : field.split(",")) {
+            int step = 1;
+            String range = part;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseNumber(part.substring(slash + 1), 1, max);
+                range = part.substring(0, slash);
+            }
+            int start;
+            int end;
+            if (range.equals("*")) {
+                start = min;
+                end = max;
+            } else {
+                int dash = range.indexOf('-');
+                if (dash >= 0) {
+                    start = parseNumber(range.substring(0, dash), min, max);
+                    end = parseNumber(range.substring(dash + 1), min, max);
+                } else {
+                    start = parseNumber(range, min, max);
+                    // "5/10" means from 5 to the end.
+                    end = slash >= 0 ? max : start;
+                }
+            }
+            if (start > end) {
+                throw new IllegalArgumentException(
+                        "Invalid range '" + range + "'.");
+            }
+            for (int value = start; value <= end; value += step) {
+                result.set(value);
+            }
+        }
+        return result;
+    }
+
+    protected static int parseNumber(String value, int min, int max) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(
+                    "Invalid number '" + value + "'.", ex);
+        }
+        if (result < min || result > max) {
+            throw new IllegalArgumentException("Value " + result
+                    + " is out of range " + min + "-" + max + ".");
+        }
+        return result;
+    }
+
+    /**
+     * Return the first matching time after the given time, or null
+     * when there is none.
+     */
+    public ZonedDateTime next(ZonedDateTime after) {
+        var time = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        var limit = after.plusYears(MAX_YEARS);
+        while (time.isBefore(limit)) {
+            if (!months.get(time.getMonthValue())) {
+                time = time.withDayOfMonth(1)
+                        .truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+            } else if (!matchesDay(time)) {
+                time = time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+            } else if (!hours.get(time.getHour())) {
+                time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+            } else if (!minutes.get(time.getMinute())) {
+                time = time.plusMinutes(1);
+            } else {
+                return time;
+            }
+        }
+        return null;
+    }
+
+    protected boolean matchesDay(ZonedDateTime time) {
+        boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+        // Monday is 1 and Sunday is 7, we use 0 for Sunday.
+        boolean dayOfWeek = daysOfWeek.get(
+                time.getDayOfWeek().getValue() % 7);
+        if (anyDayOfMonth || anyDayOfWeek) {
+            return dayOfMonth && dayOfWeek;
+        }
+        return dayOfMonth || dayOfWeek;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+}
@@ -0,0 +1,312 @@
+package cz.gov.data.ms.action;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import cz.gov.data.ms.AzureAuthentication;
+import cz.gov.data.ms.sharepoint.ResolutionCache;
+import cz.gov.data.rdf.OutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Run multiple download jobs described by a manifest in a single process.
+ * All jobs share the authentication and so the Graph client with its
+ * connection pool.
+ */
+public class DownloadBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DownloadBatch.class);
+
+    public static final String DOWNLOAD_LIST = "download-list";
+
+    public static final String DOWNLOAD_DIRECTORY = "download-directory";
+
+    /**
+     * Content of the manifest file.
+     */
+    public static class Manifest {
+
+        /**
+         * Maximum number of jobs running at the same time.
+         */
+        public int concurrency = 4;
+
+        public List<Job> jobs = new ArrayList<>();
+
+    }
+
+    /**
+     * Properties follow the command line arguments of the commands.
+     */
+    public static class Job {
+
+        /**
+         * Used in the report, when missing the job index is used.
+         */
+        public String name;
+
+        /**
+         * Either {@link #DOWNLOAD_LIST} or {@link #DOWNLOAD_DIRECTORY}.
+         */
+        public String type;
+
+        /**
+         * When missing the site from the command line is used.
+         */
+        public String site;
+
+        public String output;
+
+        /**
+         * Cron expression, used only by the serve command,
+         * see {@link CronSchedule}.
+         */
+        public String schedule;
+
+        // download-list
+
+        public String list;
+
+        public String base;
+
+        /**
+         * Used also by download-directory, requires {@link #report}.
+         */
+        public boolean incremental = false;
+
+        public List<String> columns;
+
+        public boolean skipSystemColumns = false;
+
+        public Integer pageSize;
+
+        public boolean streamItems = false;
+
+        /**
+         * Output format, see {@link OutputFormat#parse}.
+         */
+        public String format;
+
+        public int conversionParallelism = 1;
+
+        public boolean identifyRows = false;
+
+        public boolean patch = false;
+
+        // download-directory
+
+        public String path;
+
+        public int parallelism = 4;
+
+        public boolean mirror = false;
+
+        public boolean delete = false;
+
+        public boolean recursive = false;
+
+        /**
+         * Output file with result of every downloaded file.
+         */
+        public String report;
+
+    }
+
+    /**
+     * Outcome of a single job, written into the report.
+     */
+    public record JobResult(
+            String name, String type, String status, String error,
+            String startedAt, long durationMs) {
+
+        public boolean isSuccess() {
+            return "success".equals(status);
+        }
+
+    }
+
+    protected final AzureAuthentication authentication;
+
+    protected final String siteIdentifier;
+
+    protected final ResolutionCache resolutionCache;
+
+    protected final Gson gson = new GsonBuilder()
+            .setPrettyPrinting()
+            .disableHtmlEscaping()
+            .create();
+
+    public DownloadBatch(
+            AzureAuthentication authentication, String siteIdentifier,
+            ResolutionCache resolutionCache) {
+        this.authentication = authentication;
+        this.siteIdentifier = siteIdentifier;
+        this.resolutionCache = resolutionCache;
+    }
+
+    public Manifest loadManifest(Path path) throws IOException {
+        try (var reader = Files.newBufferedReader(
+                path, StandardCharsets.UTF_8)) {
+            var result = gson.fromJson(reader, Manifest.class);
+            if (result == null || result.jobs == null) {
+                throw new IOException("Manifest does not contain jobs.");
+            }
+            return result;
+        } catch (JsonParseException ex) {
+            throw new IOException("Invalid manifest.", ex);
+        }
+    }
+
+    /**
+     * Run all jobs, at most {@link Manifest#concurrency} at a time,
+     * and return results in the order of the jobs.
+     */
+    public List<JobResult> execute(Manifest manifest) {
+        var permits = new Semaphore(Math.max(1, manifest.concurrency));
+        var futures = new ArrayList<Future<JobResult>>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int index = 0; index < manifest.jobs.size(); ++index) {
+                Job job = manifest.jobs.get(index);
+                String name = job.name == null ?
+                        String.valueOf(index) : job.name;
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return executeJob(name, job);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
+        var results = new ArrayList<JobResult>(futures.size());
+        for (Future<JobResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted.", ex);
+            } catch (ExecutionException ex) {
+                // Failures are caught in executeJob.
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+        return results;
+    }
+
+    protected JobResult executeJob(String name, Job job) {
+        LOG.info("Starting job '{}'.", name);
+        Instant start = Instant.now();
+        String error = null;
+        try {
+            boolean success;
+            if (DOWNLOAD_LIST.equals(job.type)) {
+                success = downloadList(job);
+            } else if (DOWNLOAD_DIRECTORY.equals(job.type)) {
+                success = downloadDirectory(job);
+            } else {
+                throw new IllegalArgumentException(
+                        "Unknown job type '" + job.type + "'.");
+            }
+            if (!success) {
+                error = "Job did not finish successfully.";
+            }
+        } catch (Throwable t) {
+            LOG.error("Job '{}' failed.", name, t);
+            error = t.getMessage() == null ?
+                    t.getClass().getName() : t.getMessage();
+        }
+        long duration = System.currentTimeMillis() - start.toEpochMilli();
+        LOG.info("Job '{}' finished in {} ms.", name, duration);
+        return new JobResult(name, job.type,
+                error == null ? "success" : "failed", error,
+                start.toString(), duration);
+    }
+
+    protected boolean downloadList(Job job) {
+        var configuration = new DownloadSharepointList.Configuration();
+        configuration.incremental = job.incremental;
+        if (job.format != null) {
+            configuration.format = OutputFormat.parse(job.format);
+        }
+        configuration.conversionParallelism = job.conversionParallelism;
+        configuration.identifyRows = job.identifyRows;
+        configuration.patch = job.patch;
+        if (job.columns != null) {
+            configuration.list.columns = new LinkedHashSet<>(job.columns);
+        }
+        configuration.list.skipSystemColumns = job.skipSystemColumns;
+        configuration.list.pageSize = job.pageSize;
+        configuration.list.streamItems = job.streamItems;
+        return DownloadSharepointList.downloadContent(
+                authentication, site(job),
+                Collections.singletonList(required(job.list, "list")),
+                Collections.singletonList(required(job.base, "base")),
+                Collections.singletonList(
+                        Path.of(required(job.output, "output"))),
+                configuration);
+    }
+
+    protected boolean downloadDirectory(Job job) {
+        var configuration = new DownloadSharepointDirectory.Configuration();
+        configuration.parallelism = job.parallelism;
+        configuration.mirror = job.mirror;
+        configuration.deleteRemoved = job.delete;
+        configuration.recursive = job.recursive;
+        configuration.resolutionCache = resolutionCache;
+        if (job.report != null) {
+            configuration.reportPath = Path.of(job.report);
+        }
+        configuration.incremental = job.incremental;
+        return DownloadSharepointDirectory.downloadContent(
+                authentication, site(job), required(job.path, "path"),
+                Path.of(required(job.output, "output")), configuration);
+    }
+
+    protected String site(Job job) {
+        return required(job.site == null ? siteIdentifier : job.site, "site");
+    }
+
+    protected static String required(String value, String name) {
+        if (value == null) {
+            throw new IllegalArgumentException(
+                    "Missing required property '" + name + "'.");
+        }
+        return value;
+    }
+
+    /**
+     * Write results as JSON, using a temporary file.
+     */
+    public void writeReport(List<JobResult> results, Path path)
+            throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Path workingPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var writer = Files.newBufferedWriter(
+                workingPath, StandardCharsets.UTF_8)) {
+            gson.toJson(results, writer);
+        }
+        Files.move(workingPath, path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
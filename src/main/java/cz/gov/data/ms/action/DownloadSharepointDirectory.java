@@ -1,6 +1,14 @@
 package cz.gov.data.ms.action;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.microsoft.kiota.ApiException;
 import cz.gov.data.ms.AzureAuthentication;
+import cz.gov.data.ms.sharepoint.DriveChangeHandler;
+import cz.gov.data.ms.sharepoint.DriveManifest;
+import cz.gov.data.ms.sharepoint.DriveManifestEntry;
+import cz.gov.data.ms.sharepoint.FileHash;
+import cz.gov.data.ms.sharepoint.ResolutionCache;
 import cz.gov.data.ms.sharepoint.SharepointFile;
 import cz.gov.data.ms.sharepoint.Sharepoint;
 import cz.gov.data.ms.sharepoint.SharepointException;
@@ -8,57 +16,730 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 public class DownloadSharepointDirectory {
 
     private static final Logger LOG = LoggerFactory.getLogger(DownloadSharepointDirectory.class);
 
+    /**
+     * Outcome of a single file download.
+     *
+     * @param hash Hash of the downloaded content, null on failure.
+     * @param skipped True when the file was not downloaded as it has
+     *                not changed since the last run.
+     */
+    public record FileResult(
+            SharepointFile file, FileHash hash, Throwable error,
+            long durationMs, boolean skipped) {
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+    }
+
+    public static class Configuration {
+
+        /**
+         * Maximum number of files downloaded at the same time.
+         */
+        public int parallelism = 4;
+
+        /**
+         * When true, only files changed since the last run are downloaded.
+         */
+        public boolean mirror = false;
+
+        /**
+         * In mirror mode, delete local files deleted from the drive.
+         */
+        public boolean deleteRemoved = false;
+
+        /**
+         * Download also content of sub-folders.
+         */
+        public boolean recursive = false;
+
+        /**
+         * Identifiers of drives and directories resolved in previous runs.
+         */
+        public ResolutionCache resolutionCache = ResolutionCache.inMemory();
+
+        public Sharepoint.FileConfiguration file =
+                new Sharepoint.FileConfiguration();
+
+        /**
+         * When set, result of every file is written into this file.
+         */
+        public Path reportPath = null;
+
+        /**
+         * Skip files with the same hash as in the report of the last run,
+         * requires {@link #reportPath}.
+         */
+        public boolean incremental = false;
+
+    }
+
+    /**
+     * Name of the mirror manifest file in the output directory.
+     */
+    public static final String MANIFEST_FILE = ".ms-adapter-manifest";
+
     protected final AzureAuthentication authentication;
 
     protected final String siteIdentifier;
 
-    public static void downloadContent(
+    protected final Configuration configuration;
+
+    /**
+     * Files from the report of the last run by identifier, empty
+     * unless the run is incremental.
+     */
+    protected Map<String, FileReport> previousFiles = Map.of();
+
+    /**
+     * Return true when all files were downloaded.
+     */
+    public static boolean downloadContent(
             AzureAuthentication authentication,
             String siteIdentifier,
             String path,
-            Path outputPath) {
+            Path outputPath,
+            Configuration configuration) {
         var instance = new DownloadSharepointDirectory(
-                authentication, siteIdentifier);
+                authentication, siteIdentifier, configuration);
         try {
             Files.createDirectories(outputPath);
         } catch (IOException ex) {
             LOG.error("Can not create target directory '{}'.", outputPath, ex);
+            return false;
+        }
+        if (configuration.incremental) {
+            if (configuration.reportPath == null) {
+                LOG.error("Incremental download requires a report.");
+                return false;
+            }
+            try {
+                instance.previousFiles =
+                        instance.loadReport(configuration.reportPath);
+            } catch (IOException | RuntimeException ex) {
+                LOG.error("Can not read report '{}'.",
+                        configuration.reportPath, ex);
+                return false;
+            }
+        }
+        if (configuration.mirror && configuration.recursive) {
+            LOG.error("Mirror mode is not supported for recursive download.");
+            return false;
+        } else if (configuration.mirror) {
+            return instance.mirrorDirectory(path, outputPath);
+        } else if (configuration.recursive) {
+            return instance.downloadTree(path, outputPath);
+        } else {
+            return instance.downloadList(path, outputPath);
         }
-        instance.downloadList(path, outputPath);
     }
 
     public DownloadSharepointDirectory(
-            AzureAuthentication authentication, String siteIdentifier) {
+            AzureAuthentication authentication, String siteIdentifier,
+            Configuration configuration) {
         this.authentication = authentication;
         this.siteIdentifier = siteIdentifier;
+        this.configuration = configuration;
+    }
+
+    protected Sharepoint createSharepoint() {
+        return new Sharepoint(authentication.graphClient(),
+                new Sharepoint.ListConfiguration(),
+                configuration.resolutionCache);
+    }
+
+    protected FileDownloader createDownloader(Sharepoint sharepoint) {
+        return new FileDownloader(sharepoint, configuration.parallelism,
+                configuration.file, this::findUnchanged);
+    }
+
+    /**
+     * Return hash from the last run when the file has the same hash
+     * in the listing and the local file has the expected size,
+     * otherwise return null and the file is downloaded.
+     */
+    protected FileHash findUnchanged(SharepointFile file, Path directory) {
+        if (!(file instanceof DriveManifestEntry entry) || entry.hash == null) {
+            return null;
+        }
+        var previous = previousFiles.get(file.fileIdentifier);
+        if (previous == null || "failed".equals(previous.status)) {
+            return null;
+        }
+        var hash = new FileHash(
+                previous.hashAlgorithm, previous.hash, previous.hashVerified);
+        if (!hash.matches(entry.hashAlgorithm, entry.hash)) {
+            return null;
+        }
+        try {
+            if (Files.size(directory.resolve(file.fileName)) != entry.size) {
+                return null;
+            }
+        } catch (IOException ex) {
+            // Missing or not accessible, download again.
+            return null;
+        }
+        return hash;
     }
 
-    protected void downloadList(
+    /**
+     * Resolve the directory, when resolved from the cache make sure
+     * it still exists. Return null when the directory can not be found.
+     */
+    protected SharepointFile findDirectory(
+            Sharepoint sharepoint, String drivePath) {
+        SharepointFile directory;
+        try {
+            var resolved = sharepoint.resolveDirectoryPath(
+                    siteIdentifier, drivePath);
+            directory = resolved == null ? null : resolved.directory();
+            if (resolved != null && resolved.cached()
+                    && !sharepoint.exists(directory)) {
+                LOG.info("Cached directory '{}' no longer exists.", drivePath);
+                directory = sharepoint.findDirectory(siteIdentifier, drivePath);
+            }
+        } catch (SharepointException ex) {
+            LOG.error("Can not find directory '{}'.", drivePath, ex);
+            return null;
+        }
+        if (directory == null) {
+            LOG.error("Can not find directory '{}'.", drivePath);
+        }
+        return directory;
+    }
+
+    protected boolean downloadList(
             String drivePath, Path outputPath) {
-        var sharepoint = new Sharepoint(authentication.graphClient());
+        var sharepoint = createSharepoint();
         List<SharepointFile> fileList;
 
         try {
             fileList = sharepoint.listDriveDirectory(siteIdentifier, drivePath);
         } catch (SharepointException ex) {
             LOG.error("Can not list content of '{}'.", drivePath, ex);
-            return;
+            return false;
+        }
+
+        var files = new ArrayList<SharepointFile>(fileList.size());
+        for (SharepointFile file : fileList) {
+            if (file.folder) {
+                LOG.info("Skipping folder '{}'.", file.fileName);
+            } else {
+                files.add(file);
+            }
+        }
+        var results = downloadFiles(sharepoint, files, outputPath);
+        return reportResults(results);
+    }
+
+    /**
+     * Download the directory with all sub-folders. Folders are listed in
+     * parallel, files are downloaded as soon as they are discovered.
+     * Local directory layout mirrors the source.
+     */
+    protected boolean downloadTree(String drivePath, Path outputPath) {
+        var sharepoint = createSharepoint();
+        FolderContent root = listRoot(sharepoint, drivePath);
+        if (root == null) {
+            return false;
+        }
+        var downloader = createDownloader(sharepoint);
+        downloader.start();
+        var failures = new ConcurrentLinkedQueue<FileResult>();
+        try (var listing = new TreeListing(sharepoint, downloader,
+                failures, configuration.parallelism)) {
+            listing.listFolder(root.folder, root.content, outputPath).join();
+        }
+        var results = downloader.finish();
+        results.addAll(failures);
+        return reportResults(results);
+    }
+
+    /**
+     * Folder with its content.
+     */
+    protected record FolderContent(
+            SharepointFile folder, List<SharepointFile> content) {
+    }
+
+    /**
+     * List the directory without checking it exists first. When it was
+     * resolved from the cache and the listing fails with 404, the entry
+     * is removed from the cache by the listing, so we resolve it again.
+     * Return null when the directory can not be listed.
+     */
+    protected FolderContent listRoot(Sharepoint sharepoint, String drivePath) {
+        SharepointFile directory;
+        List<SharepointFile> content;
+        try {
+            var resolved = sharepoint.resolveDirectoryPath(
+                    siteIdentifier, drivePath);
+            if (resolved == null) {
+                LOG.error("Can not find directory '{}'.", drivePath);
+                return null;
+            }
+            directory = resolved.directory();
+            try {
+                content = sharepoint.listDriveDirectoryByIdentifier(
+                        directory.driveIdentifier, directory.fileIdentifier);
+            } catch (ApiException ex) {
+                if (!resolved.cached() || ex.getResponseStatusCode() != 404) {
+                    throw ex;
+                }
+                LOG.info("Cached directory '{}' no longer exists.", drivePath);
+                directory = sharepoint.findDirectory(siteIdentifier, drivePath);
+                if (directory == null) {
+                    LOG.error("Can not find directory '{}'.", drivePath);
+                    return null;
+                }
+                content = sharepoint.listDriveDirectoryByIdentifier(
+                        directory.driveIdentifier, directory.fileIdentifier);
+            }
+        } catch (SharepointException | RuntimeException ex) {
+            LOG.error("Can not list content of '{}'.", drivePath, ex);
+            return null;
+        }
+        return new FolderContent(directory, content);
+    }
+
+    /**
+     * Lists folders of a tree using virtual threads, as listing blocks on
+     * Graph requests. At most parallelism folders are listed at a time.
+     * Files are submitted for download, sub-folders are listed next.
+     */
+    protected static class TreeListing implements AutoCloseable {
+
+        protected final Sharepoint sharepoint;
+
+        protected final FileDownloader downloader;
+
+        protected final Collection<FileResult> failures;
+
+        protected final Semaphore permits;
+
+        protected final ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor();
+
+        protected TreeListing(
+                Sharepoint sharepoint, FileDownloader downloader,
+                Collection<FileResult> failures, int parallelism) {
+            this.sharepoint = sharepoint;
+            this.downloader = downloader;
+            this.failures = failures;
+            this.permits = new Semaphore(Math.max(1, parallelism));
+        }
+
+        /**
+         * Complete once the folder and all its sub-folders are listed.
+         *
+         * @param content Content of the folder when already listed,
+         *                null otherwise.
+         */
+        public CompletableFuture<Void> listFolder(
+                SharepointFile folder, List<SharepointFile> content,
+                Path outputPath) {
+            return CompletableFuture
+                    .supplyAsync(() -> processFolder(
+                            folder, content, outputPath), executor)
+                    .thenCompose(subfolders -> CompletableFuture.allOf(
+                            subfolders.stream()
+                                    .map(item -> listFolder(item, null,
+                                            outputPath.resolve(item.fileName)))
+                                    .toArray(CompletableFuture[]::new)));
+        }
+
+        /**
+         * Submit files for download and return sub-folders, on failure
+         * the folder is reported and no sub-folders are returned.
+         */
+        protected List<SharepointFile> processFolder(
+                SharepointFile folder, List<SharepointFile> content,
+                Path outputPath) {
+            long start = System.currentTimeMillis();
+            try {
+                Files.createDirectories(outputPath);
+                if (content == null) {
+                    content = list(folder);
+                }
+            } catch (IOException | SharepointException | RuntimeException ex) {
+                LOG.error("Can not list folder '{}'.", folder.fileName, ex);
+                failures.add(new FileResult(folder, null, ex,
+                        System.currentTimeMillis() - start, false));
+                return List.of();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failures.add(new FileResult(folder, null, ex,
+                        System.currentTimeMillis() - start, false));
+                return List.of();
+            }
+            var result = new ArrayList<SharepointFile>();
+            for (SharepointFile item : content) {
+                if (item.folder) {
+                    result.add(item);
+                } else {
+                    downloader.submit(item, outputPath);
+                }
+            }
+            return result;
+        }
+
+        protected List<SharepointFile> list(SharepointFile folder)
+                throws SharepointException, InterruptedException {
+            permits.acquire();
+            try {
+                return sharepoint.listDriveDirectoryByIdentifier(
+                        folder.driveIdentifier, folder.fileIdentifier);
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        public void close() {
+            executor.close();
+        }
+
+    }
+
+    /**
+     * Use the manifest from the previous run and drive delta to download
+     * only new and modified files.
+     */
+    protected boolean mirrorDirectory(String drivePath, Path outputPath) {
+        var sharepoint = createSharepoint();
+        SharepointFile directory = findDirectory(sharepoint, drivePath);
+        if (directory == null) {
+            return false;
+        }
+        Path manifestPath = outputPath.resolve(MANIFEST_FILE);
+        DriveManifest manifest;
+        try {
+            manifest = loadManifest(manifestPath, directory);
+        } catch (IOException ex) {
+            LOG.error("Can not read manifest '{}'.", manifestPath, ex);
+            return false;
+        }
+        var changes = new MirrorChanges(
+                manifest, directory.fileIdentifier, outputPath);
+        String deltaLink;
+        try {
+            deltaLink = sharepoint.downloadDriveChanges(
+                    directory.driveIdentifier, manifest.deltaLink, changes);
+        } catch (SharepointException ex) {
+            LOG.error("Can not list changes of '{}'.", drivePath, ex);
+            return false;
+        }
+        changes.onEnd();
+        LOG.info("Files to download: {}, removed files: {}",
+                changes.download.size(), changes.removed.size());
+        // Download.
+        var results = downloadFiles(
+                sharepoint, new ArrayList<>(changes.download.values()),
+                outputPath);
+        boolean success = true;
+        for (FileResult result : results) {
+            if (!result.isSuccess()) {
+                success = false;
+                continue;
+            }
+            var entry = (DriveManifestEntry) result.file();
+            if (entry.hash == null) {
+                // Keep the hash we computed, so we have one for the file.
+                entry = new DriveManifestEntry(
+                        entry.driveIdentifier, entry.fileIdentifier,
+                        entry.fileName, entry.size, entry.eTag, entry.cTag,
+                        result.hash().algorithm(), result.hash().value());
+            }
+            var previous = manifest.get(entry.fileIdentifier);
+            if (previous != null
+                    && !previous.fileName.equals(entry.fileName)) {
+                // File was renamed.
+                deleteLocalFile(outputPath, previous);
+            }
+            manifest.put(entry);
+        }
+        // Removed.
+        for (String identifier : changes.removed) {
+            var previous = manifest.remove(identifier);
+            if (configuration.deleteRemoved && previous != null) {
+                deleteLocalFile(outputPath, previous);
+            }
+        }
+        // We move forward only when all changes were applied,
+        // otherwise failed files would not be reported again.
+        if (success) {
+            manifest.deltaLink = deltaLink;
+        } else if (changes.reset) {
+            manifest.deltaLink = null;
+        }
+        try {
+            manifest.save(manifestPath);
+        } catch (IOException ex) {
+            LOG.error("Can not save manifest '{}'.", manifestPath, ex);
+            return false;
+        }
+        return reportResults(results);
+    }
+
+    protected DriveManifest loadManifest(
+            Path manifestPath, SharepointFile directory) throws IOException {
+        var result = DriveManifest.load(manifestPath);
+        if (result == null
+                || !result.driveIdentifier.equals(directory.driveIdentifier)
+                || !result.directoryIdentifier.equals(
+                directory.fileIdentifier)) {
+            LOG.info("Creating new manifest.");
+            return new DriveManifest(
+                    directory.driveIdentifier, directory.fileIdentifier);
+        }
+        return result;
+    }
+
+    protected void deleteLocalFile(Path outputPath, SharepointFile file) {
+        try {
+            Files.deleteIfExists(outputPath.resolve(file.fileName));
+        } catch (IOException ex) {
+            LOG.warn("Can not delete file '{}'.", file.fileName, ex);
         }
+    }
+
+    /**
+     * Collect changes relevant for the mirrored directory.
+     */
+    protected static class MirrorChanges implements DriveChangeHandler {
+
+        protected final DriveManifest manifest;
+
+        protected final String directoryIdentifier;
+
+        protected final Path outputPath;
+
+        /**
+         * Files to download by identifier.
+         */
+        protected final Map<String, DriveManifestEntry> download =
+                new LinkedHashMap<>();
+
+        /**
+         * Identifiers of files to remove from the manifest.
+         */
+        protected final Set<String> removed = new HashSet<>();
 
-        for (SharepointFile driveFile : fileList) {
+        /**
+         * Identifiers of all reported files.
+         */
+        protected final Set<String> seen = new HashSet<>();
+
+        /**
+         * True when all items are reported.
+         */
+        protected boolean reset;
+
+        protected MirrorChanges(
+                DriveManifest manifest, String directoryIdentifier,
+                Path outputPath) {
+            this.manifest = manifest;
+            this.directoryIdentifier = directoryIdentifier;
+            this.outputPath = outputPath;
+            this.reset = manifest.deltaLink == null;
+        }
+
+        @Override
+        public void onFileChanged(
+                String parentIdentifier, DriveManifestEntry file) {
+            if (!directoryIdentifier.equals(parentIdentifier)) {
+                // Not in our directory, may have been moved out.
+                onDeleted(file.fileIdentifier);
+                return;
+            }
+            seen.add(file.fileIdentifier);
+            removed.remove(file.fileIdentifier);
+            var previous = manifest.get(file.fileIdentifier);
+            if (previous != null
+                    && previous.sameContent(file)
+                    && previous.fileName.equals(file.fileName)
+                    && Files.exists(outputPath.resolve(file.fileName))) {
+                // Only metadata changed.
+                download.remove(file.fileIdentifier);
+                manifest.put(file);
+                return;
+            }
+            download.put(file.fileIdentifier, file);
+        }
+
+        @Override
+        public void onDeleted(String identifier) {
+            download.remove(identifier);
+            seen.remove(identifier);
+            if (manifest.get(identifier) != null) {
+                removed.add(identifier);
+            }
+        }
+
+        @Override
+        public void onReset() {
+            download.clear();
+            removed.clear();
+            seen.clear();
+            reset = true;
+        }
+
+        /**
+         * Called once all changes were reported.
+         */
+        protected void onEnd() {
+            if (!reset) {
+                return;
+            }
+            // All items were reported, so what we have not seen is gone.
+            for (DriveManifestEntry entry : manifest.entries()) {
+                if (!seen.contains(entry.fileIdentifier)) {
+                    removed.add(entry.fileIdentifier);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Download files using virtual threads, at most
+     * {@link Configuration#parallelism} at a time. The largest files are
+     * started first, so they do not prolong the run when started at the end.
+     */
+    protected List<FileResult> downloadFiles(
+            Sharepoint sharepoint, List<SharepointFile> files,
+            Path outputPath) {
+        var downloader = createDownloader(sharepoint);
+        for (SharepointFile file : files) {
+            downloader.submit(file, outputPath);
+        }
+        downloader.start();
+        return downloader.finish();
+    }
+
+    /**
+     * Log summary and return true when all files were downloaded.
+     */
+    protected boolean reportResults(List<FileResult> results) {
+        int failed = 0;
+        int skipped = 0;
+        for (FileResult result : results) {
+            if (result.skipped) {
+                ++skipped;
+                LOG.info("Skipped unchanged '{}'.", result.file.fileName);
+            } else if (result.isSuccess()) {
+                LOG.info("Downloaded '{}' ({} bytes) in {} ms, {} {}.",
+                        result.file.fileName, result.file.size,
+                        result.durationMs, result.hash.algorithm(),
+                        result.hash.verified() ? "verified" : "computed");
+            } else {
+                ++failed;
+                LOG.warn("Failed to download '{}': {}",
+                        result.file.fileName, result.error.getMessage());
+            }
+        }
+        LOG.info("Downloaded {} of {} files, {} skipped, {} failed.",
+                results.size() - failed - skipped, results.size(),
+                skipped, failed);
+        if (configuration.reportPath != null) {
             try {
-                sharepoint.downloadFile(driveFile, outputPath);
-            } catch (IOException | SharepointException ex) {
-                LOG.error("Can not download file '{}'", driveFile.fileName, ex);
+                writeReport(results, configuration.reportPath);
+            } catch (IOException ex) {
+                LOG.error("Can not write report '{}'.",
+                        configuration.reportPath, ex);
+                return false;
             }
         }
+        return failed == 0;
     }
+
+    /**
+     * Record in the report file.
+     */
+    protected record FileReport(
+            String name, String identifier, long size, String status,
+            String error, long durationMs, String hashAlgorithm,
+            String hash, boolean hashVerified) {
+    }
+
+    /**
+     * Return files from the report by identifier, empty when there
+     * is no report.
+     */
+    protected Map<String, FileReport> loadReport(Path path)
+            throws IOException {
+        var result = new HashMap<String, FileReport>();
+        if (!Files.exists(path)) {
+            return result;
+        }
+        try (var reader = Files.newBufferedReader(
+                path, StandardCharsets.UTF_8)) {
+            var records = new Gson().fromJson(reader, FileReport[].class);
+            if (records == null) {
+                return result;
+            }
+            for (FileReport record : records) {
+                result.put(record.identifier, record);
+            }
+        }
+        return result;
+    }
+
+    protected void writeReport(List<FileResult> results, Path path)
+            throws IOException {
+        var records = new ArrayList<FileReport>(results.size());
+        for (FileResult result : results) {
+            var hash = result.hash;
+            records.add(new FileReport(
+                    result.file.fileName, result.file.fileIdentifier,
+                    result.file.size,
+                    result.skipped ? "skipped" :
+                            result.isSuccess() ? "success" : "failed",
+                    result.isSuccess() ? null : result.error.getMessage(),
+                    result.durationMs,
+                    hash == null ? null : hash.algorithm(),
+                    hash == null ? null : hash.value(),
+                    hash != null && hash.verified()));
+        }
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Path workingPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var writer = Files.newBufferedWriter(
+                workingPath, StandardCharsets.UTF_8)) {
+            new GsonBuilder()
+                    .setPrettyPrinting()
+                    .disableHtmlEscaping()
+                    .create()
+                    .toJson(records, writer);
+        }
+        Files.move(workingPath, path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
 }
@@ -1,10 +1,20 @@
 package cz.gov.data.ms.action;
 
+import cz.gov.data.ms.metrics.Metrics;
+import cz.gov.data.ms.sharepoint.Column;
+import cz.gov.data.ms.sharepoint.Row;
+import cz.gov.data.ms.sharepoint.RowIndex;
 import cz.gov.data.ms.sharepoint.SharePointListToRdf;
 import cz.gov.data.ms.AzureAuthentication;
+import cz.gov.data.ms.sharepoint.ListPatchWriter;
+import cz.gov.data.ms.sharepoint.ListSnapshot;
+import cz.gov.data.ms.sharepoint.ParallelListToRdf;
+import cz.gov.data.ms.sharepoint.PrefetchedList;
 import cz.gov.data.ms.sharepoint.Sharepoint;
+import cz.gov.data.ms.sharepoint.SharepointListHandler;
+import cz.gov.data.rdf.OutputFormat;
+import cz.gov.data.rdf.StatementsBuilder;
 import org.eclipse.rdf4j.model.Statement;
-import org.eclipse.rdf4j.rio.trig.TriGWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,8 +22,12 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class DownloadSharepointList{
 
@@ -23,49 +37,369 @@ public class DownloadSharepointList{
 
     protected final String siteIdentifier;
 
-    public static void downloadContent(
+    public static class Configuration {
+
+        /**
+         * When true, only changes since the last run are downloaded.
+         */
+        public boolean incremental = false;
+
+        /**
+         * Output is compressed when the output file name ends with ".gz".
+         */
+        public OutputFormat format = OutputFormat.TRIG;
+
+        /**
+         * Number of threads converting rows, used only for line based
+         * formats.
+         */
+        public int conversionParallelism = 1;
+
+        /**
+         * Number of rows converted together by a single thread.
+         */
+        public int conversionChunkSize = ParallelListToRdf.DEFAULT_CHUNK_SIZE;
+
+        /**
+         * When true, rows are identified by IRIs derived from item
+         * identifiers instead of blank nodes, so outputs can be compared.
+         */
+        public boolean identifyRows = false;
+
+        /**
+         * When true, changes since the last run are written as SPARQL
+         * Update next to the output. Implies {@link #identifyRows}.
+         */
+        public boolean patch = false;
+
+        public Sharepoint.ListConfiguration list =
+                new Sharepoint.ListConfiguration();
+
+    }
+
+    protected final Configuration configuration;
+
+    /**
+     * Return true when the list was saved.
+     */
+    public static boolean downloadContent(
             AzureAuthentication authentication,
             String siteIdentifier,
             String listIdentifier,
             String baseUrl,
-            Path outputPath)  {
-        var instance = new DownloadSharepointList(authentication, siteIdentifier);
-        instance.downloadList(listIdentifier, baseUrl, outputPath);
+            Path outputPath,
+            Configuration configuration)  {
+        var instance = new DownloadSharepointList(
+                authentication, siteIdentifier, configuration);
+        return instance.downloadList(listIdentifier, baseUrl, outputPath);
+    }
+
+    /**
+     * Download multiple lists, the lists are prefetched together to save
+     * round-trips. Return true when all lists were saved.
+     */
+    public static boolean downloadContent(
+            AzureAuthentication authentication,
+            String siteIdentifier,
+            List<String> listIdentifiers,
+            List<String> baseUrls,
+            List<Path> outputPaths,
+            Configuration configuration)  {
+        var instance = new DownloadSharepointList(
+                authentication, siteIdentifier, configuration);
+        return instance.downloadLists(
+                listIdentifiers, baseUrls, outputPaths);
     }
 
     public DownloadSharepointList(
-            AzureAuthentication authentication, String siteIdentifier) {
+            AzureAuthentication authentication, String siteIdentifier,
+            Configuration configuration) {
         this.authentication = authentication;
         this.siteIdentifier = siteIdentifier;
+        this.configuration = configuration;
     }
 
-    protected void downloadList(
+    protected boolean downloadList(
             String listIdentifier,
             String baseUrl,
             Path outputPath) {
-        var sharepointList = new Sharepoint(authentication.graphClient())
-                .downloadList(siteIdentifier, listIdentifier);
-        var statements = SharePointListToRdf.toRdf(sharepointList, baseUrl);
+        var sharepoint = new Sharepoint(
+                authentication.graphClient(), configuration.list);
         try {
-            write(statements, outputPath);
-        } catch(IOException exception) {
+            if (configuration.incremental) {
+                Path snapshotPath = snapshotPath(outputPath);
+                var snapshot = ListSnapshot.load(snapshotPath);
+                write(handler -> sharepoint.downloadListChanges(
+                                siteIdentifier, listIdentifier,
+                                snapshot, handler),
+                        baseUrl, outputPath);
+                // Save the state only once the output is written.
+                snapshot.save();
+            } else {
+                write(handler -> sharepoint.downloadList(
+                                siteIdentifier, listIdentifier, handler),
+                        baseUrl, outputPath);
+            }
+            return true;
+        } catch(IOException | RuntimeException exception) {
             LOG.error("Failed to save list to '{}'.", outputPath, exception);
+            return false;
+        }
+    }
+
+    protected boolean downloadLists(
+            List<String> listIdentifiers,
+            List<String> baseUrls,
+            List<Path> outputPaths) {
+        if (configuration.incremental || listIdentifiers.size() == 1) {
+            // There is nothing to prefetch.
+            return downloadEach(listIdentifiers, baseUrls, outputPaths);
+        }
+        var sharepoint = new Sharepoint(
+                authentication.graphClient(), configuration.list);
+        List<PrefetchedList> lists;
+        try {
+            lists = sharepoint.prefetchLists(siteIdentifier, listIdentifiers);
+        } catch (RuntimeException exception) {
+            LOG.warn("Failed to prefetch lists, downloading one by one.",
+                    exception);
+            return downloadEach(listIdentifiers, baseUrls, outputPaths);
         }
+        boolean success = true;
+        for (int index = 0; index < lists.size(); ++index) {
+            var list = lists.get(index);
+            Path outputPath = outputPaths.get(index);
+            try {
+                write(handler -> sharepoint.downloadList(list, handler),
+                        baseUrls.get(index), outputPath);
+            } catch(IOException | RuntimeException exception) {
+                LOG.error("Failed to save list to '{}'.",
+                        outputPath, exception);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    protected boolean downloadEach(
+            List<String> listIdentifiers,
+            List<String> baseUrls,
+            List<Path> outputPaths) {
+        boolean success = true;
+        for (int index = 0; index < listIdentifiers.size(); ++index) {
+            success &= downloadList(listIdentifiers.get(index),
+                    baseUrls.get(index), outputPaths.get(index));
+        }
+        return success;
+    }
+
+    /**
+     * Items and delta link are stored next to the output.
+     */
+    protected Path snapshotPath(Path outputPath) {
+        return outputPath.resolveSibling(
+                outputPath.getFileName() + ".delta");
     }
 
+    /**
+     * Identifier and hash of rows from the last run are stored next
+     * to the output.
+     */
+    protected Path rowIndexPath(Path outputPath) {
+        return outputPath.resolveSibling(
+                outputPath.getFileName() + ".rows");
+    }
+
+    /**
+     * SPARQL Update with changes since the last run.
+     */
+    protected Path patchPath(Path outputPath) {
+        return outputPath.resolveSibling(
+                outputPath.getFileName() + ".ru");
+    }
+
+    /**
+     * Rows are converted and written as they are downloaded. We write into
+     * a temporary file first, so a failure does not leave partial output.
+     */
     protected void write(
-            List<Statement> statements,
+            Consumer<SharepointListHandler> source,
+            String baseUrl,
             Path outputPath) throws IOException {
         Files.createDirectories(outputPath.getParent());
-        LOG.info("Saving {} statements to {}", statements.size(), outputPath);
-        try (var writer = Files.newBufferedWriter(
-                outputPath, StandardCharsets.UTF_8)) {
-            var trigWriter = new TriGWriter(writer);
-            trigWriter.startRDF();
-            for (Statement statement : statements) {
-                trigWriter.handleStatement(statement);
+        Path workingPath = outputPath.resolveSibling(
+                outputPath.getFileName() + ".tmp");
+        LOG.info("Saving statements to {}", outputPath);
+        boolean compress = OutputFormat.isCompressed(outputPath);
+        Path patchPath = patchPath(outputPath);
+        Path patchWorkingPath = patchPath.resolveSibling(
+                patchPath.getFileName() + ".tmp");
+        ListPatchWriter patchWriter = configuration.patch ?
+                new ListPatchWriter(baseUrl,
+                        RowIndex.load(rowIndexPath(outputPath)),
+                        Files.newBufferedWriter(
+                                patchWorkingPath, StandardCharsets.UTF_8)) :
+                null;
+        var rowCounter = new AtomicLong();
+        Consumer<SharepointListHandler> countingSource =
+                handler -> source.accept(new SharepointListHandler() {
+
+                    @Override
+                    public void onColumns(List<Column> columns) {
+                        handler.onColumns(columns);
+                    }
+
+                    @Override
+                    public void onRow(Row row) {
+                        rowCounter.incrementAndGet();
+                        handler.onRow(row);
+                    }
+
+                });
+        long start = System.nanoTime();
+        long statementCount;
+        try {
+            try {
+                if (isParallel()) {
+                    statementCount = writeParallel(countingSource,
+                            baseUrl, workingPath, compress, patchWriter);
+                } else {
+                    statementCount = writeSequential(countingSource,
+                            baseUrl, workingPath, compress, patchWriter);
+                }
+                if (patchWriter != null) {
+                    patchWriter.finish();
+                }
+            } finally {
+                if (patchWriter != null) {
+                    patchWriter.close();
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(workingPath);
+            Files.deleteIfExists(patchWorkingPath);
+            throw ex;
+        }
+        long size = Files.size(workingPath);
+        Files.move(workingPath, outputPath,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (patchWriter != null) {
+            Files.move(patchWorkingPath, patchPath,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            // Save the index only once the patch is written.
+            patchWriter.getIndex().save(rowIndexPath(outputPath));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        recordMetrics(rowCounter.get(), statementCount, size, seconds);
+        LOG.info("Saved {} rows as {} statements to {} in {} s,"
+                        + " {} rows/s, {} statements/s",
+                rowCounter.get(), statementCount, outputPath,
+                String.format(Locale.ROOT, "%.1f", seconds),
+                (long) (rowCounter.get() / seconds),
+                (long) (statementCount / seconds));
+    }
+
+    /**
+     * Duration includes download of the list, as rows are converted
+     * while they are downloaded.
+     */
+    protected void recordMetrics(
+            long rows, long statements, long bytes, double seconds) {
+        var metrics = Metrics.getInstance();
+        String format = configuration.format.name().toLowerCase(Locale.ROOT);
+        metrics.counter("list_rows_total",
+                "Number of converted list rows.").add(rows);
+        metrics.counter("list_statements_total",
+                "Number of written statements.",
+                "format", format).add(statements);
+        metrics.counter("list_output_bytes_total",
+                "Size of written output files.",
+                "format", format).add(bytes);
+        metrics.histogram("list_export_duration_seconds",
+                "Time to download, convert and write a list.",
+                Metrics.DURATION_BUCKETS).observe(seconds);
+    }
+
+    protected boolean isIdentifyRows() {
+        return configuration.identifyRows || configuration.patch;
+    }
+
+    protected boolean isParallel() {
+        if (configuration.conversionParallelism <= 1) {
+            return false;
+        }
+        if (!configuration.format.isLineBased()) {
+            LOG.warn("Format {} is converted using a single thread.",
+                    configuration.format);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * When the patch writer is given, it receives statements of each row.
+     */
+    protected long writeSequential(
+            Consumer<SharepointListHandler> source, String baseUrl,
+            Path workingPath, boolean compress,
+            ListPatchWriter patchWriter) throws IOException {
+        var counter = new AtomicLong();
+        var rowStatements = new ArrayList<Statement>();
+        try (var stream = OutputFormat.openOutput(workingPath, compress)) {
+            var rdfWriter = configuration.format.createWriter(stream);
+            var collector = new StatementsBuilder(statement -> {
+                counter.incrementAndGet();
+                rdfWriter.handleStatement(statement);
+                if (patchWriter != null) {
+                    rowStatements.add(statement);
+                }
+            });
+            rdfWriter.startRDF();
+            var converter = new SharePointListToRdf(
+                    collector, baseUrl, isIdentifyRows());
+            if (patchWriter == null) {
+                source.accept(converter);
+            } else {
+                source.accept(new SharepointListHandler() {
+
+                    @Override
+                    public void onColumns(List<Column> columns) {
+                        converter.onColumns(columns);
+                    }
+
+                    @Override
+                    public void onRow(Row row) {
+                        rowStatements.clear();
+                        converter.onRow(row);
+                        patchWriter.onRow(row.identifier, rowStatements);
+                    }
+
+                });
             }
-            trigWriter.endRDF();
+            rdfWriter.endRDF();
+        }
+        return counter.get();
+    }
+
+    /**
+     * Chunks are compressed by the converting threads, so the output
+     * stream itself is not compressed.
+     */
+    protected long writeParallel(
+            Consumer<SharepointListHandler> source, String baseUrl,
+            Path workingPath, boolean compress,
+            ListPatchWriter patchWriter) throws IOException {
+        try (var stream = OutputFormat.openOutput(workingPath, false);
+             var handler = new ParallelListToRdf(
+                     configuration.format, baseUrl, isIdentifyRows(),
+                     stream, compress,
+                     configuration.conversionParallelism,
+                     configuration.conversionChunkSize, patchWriter)) {
+            source.accept(handler);
+            handler.finish();
+            return handler.getStatementCount();
         }
     }
 
@@ -0,0 +1,147 @@
+package cz.gov.data.ms.action;
+
+import cz.gov.data.ms.action.DownloadSharepointDirectory.FileResult;
+import cz.gov.data.ms.sharepoint.FileHash;
+import cz.gov.data.ms.sharepoint.Sharepoint;
+import cz.gov.data.ms.sharepoint.SharepointException;
+import cz.gov.data.ms.sharepoint.SharepointFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Downloads files using a fixed number of virtual threads. Files can be
+ * submitted while downloading is in progress, the largest waiting file is
+ * always downloaded next.
+ */
+class FileDownloader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileDownloader.class);
+
+    /**
+     * @param order Submission order, used to break ties.
+     */
+    private record Task(SharepointFile file, Path directory, long order) {
+    }
+
+    /**
+     * Sorted after all other tasks, tells a worker to terminate.
+     */
+    private static final Task END = new Task(
+            new SharepointFile(null, null, null, Long.MIN_VALUE),
+            null, Long.MAX_VALUE);
+
+    protected final Sharepoint sharepoint;
+
+    protected final int parallelism;
+
+    protected final Sharepoint.FileConfiguration fileConfiguration;
+
+    /**
+     * Return hash of a file in a directory when it does not need to be
+     * downloaded, otherwise null.
+     */
+    protected final BiFunction<SharepointFile, Path, FileHash> unchanged;
+
+    protected final PriorityBlockingQueue<Task> queue =
+            new PriorityBlockingQueue<>(64, Comparator
+                    .comparingLong((Task task) -> task.file.size).reversed()
+                    .thenComparingLong(Task::order));
+
+    protected final AtomicLong counter = new AtomicLong();
+
+    protected final ConcurrentLinkedQueue<FileResult> results =
+            new ConcurrentLinkedQueue<>();
+
+    protected final List<Thread> workers = new ArrayList<>();
+
+    FileDownloader(
+            Sharepoint sharepoint, int parallelism,
+            Sharepoint.FileConfiguration fileConfiguration,
+            BiFunction<SharepointFile, Path, FileHash> unchanged) {
+        this.sharepoint = sharepoint;
+        this.parallelism = Math.max(1, parallelism);
+        this.fileConfiguration = fileConfiguration;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * Submit file to be downloaded into the given directory.
+     */
+    public void submit(SharepointFile file, Path directory) {
+        queue.add(new Task(file, directory, counter.getAndIncrement()));
+    }
+
+    public void start() {
+        for (int index = 0; index < parallelism; ++index) {
+            workers.add(Thread.ofVirtual()
+                    .name("file-downloader-" + index)
+                    .start(this::work));
+        }
+    }
+
+    protected void work() {
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task == END) {
+                return;
+            }
+            results.add(downloadFile(task.file, task.directory));
+        }
+    }
+
+    protected FileResult downloadFile(
+            SharepointFile file, Path outputPath) {
+        long start = System.currentTimeMillis();
+        FileHash previous = unchanged.apply(file, outputPath);
+        if (previous != null) {
+            return new FileResult(file, previous, null,
+                    System.currentTimeMillis() - start, true);
+        }
+        Throwable error = null;
+        FileHash hash = null;
+        try {
+            hash = sharepoint.downloadFile(
+                    file, outputPath, fileConfiguration);
+        } catch (IOException | SharepointException | RuntimeException ex) {
+            LOG.error("Can not download file '{}'", file.fileName, ex);
+            error = ex;
+        }
+        return new FileResult(file, hash, error,
+                System.currentTimeMillis() - start, false);
+    }
+
+    /**
+     * Wait for all submitted files to be downloaded and return results.
+     */
+    public List<FileResult> finish() {
+        for (int index = 0; index < workers.size(); ++index) {
+            queue.add(END);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted.", ex);
+            }
+        }
+        return new ArrayList<>(results);
+    }
+
+}
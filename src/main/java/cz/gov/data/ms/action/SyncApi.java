@@ -0,0 +1,109 @@
+package cz.gov.data.ms.action;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP API of the {@link SyncService}:
+ * <ul>
+ *     <li>GET /jobs - state of all jobs</li>
+ *     <li>GET /jobs/{name} - state of a job</li>
+ *     <li>POST /jobs/{name}/run - start the job, 202 when started,
+ *     409 when it is already running</li>
+ * </ul>
+ */
+public class SyncApi implements HttpHandler {
+
+    public static final String PATH = "/jobs";
+
+    private static final String RUN = "/run";
+
+    protected final SyncService service;
+
+    protected final Gson gson = new GsonBuilder()
+            .setPrettyPrinting()
+            .disableHtmlEscaping()
+            .create();
+
+    public SyncApi(SyncService service) {
+        this.service = service;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getRawPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals(PATH) || path.equals(PATH + "/")) {
+                if (!"GET".equals(method)) {
+                    respond(exchange, 405, message("Use GET."));
+                    return;
+                }
+                respond(exchange, 200, service.getJobs());
+                return;
+            }
+            if (!path.startsWith(PATH + "/")) {
+                respond(exchange, 404, message("Not found."));
+                return;
+            }
+            String name = path.substring(PATH.length() + 1);
+            if (name.endsWith(RUN)) {
+                if (!"POST".equals(method)) {
+                    respond(exchange, 405, message("Use POST."));
+                    return;
+                }
+                trigger(exchange, decode(
+                        name.substring(0, name.length() - RUN.length())));
+                return;
+            }
+            if (!"GET".equals(method)) {
+                respond(exchange, 405, message("Use GET."));
+                return;
+            }
+            var state = service.getJob(decode(name));
+            if (state == null) {
+                respond(exchange, 404, message("Job not found."));
+            } else {
+                respond(exchange, 200, state);
+            }
+        }
+    }
+
+    protected void trigger(HttpExchange exchange, String name)
+            throws IOException {
+        switch (service.trigger(name)) {
+            case STARTED -> respond(exchange, 202, service.getJob(name));
+            case ALREADY_RUNNING -> respond(exchange, 409,
+                    message("Job is already running."));
+            case NOT_FOUND -> respond(exchange, 404,
+                    message("Job not found."));
+        }
+    }
+
+    protected static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    protected static JsonObject message(String message) {
+        var result = new JsonObject();
+        result.addProperty("message", message);
+        return result;
+    }
+
+    protected void respond(HttpExchange exchange, int status, Object content)
+            throws IOException {
+        byte[] body = gson.toJson(content).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(
+                "Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+}
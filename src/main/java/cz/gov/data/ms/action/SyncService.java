@@ -0,0 +1,234 @@
+package cz.gov.data.ms.action;
+
+import cz.gov.data.ms.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs jobs of a manifest repeatedly in a long-running process, so the
+ * authentication, the Graph client and the JIT compiled code are reused.
+ * Jobs with {@link DownloadBatch.Job#schedule} are started by the schedule,
+ * any job can be started on demand using {@link #trigger}.
+ * <p>
+ * A job never runs twice at the same time, at most
+ * {@link DownloadBatch.Manifest#concurrency} jobs run at the same time.
+ */
+public class SyncService implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncService.class);
+
+    public enum TriggerResult {
+        STARTED,
+        ALREADY_RUNNING,
+        NOT_FOUND
+    }
+
+    /**
+     * State of a job, shared with the API, so access is synchronized
+     * on the instance.
+     */
+    public static class JobState {
+
+        public final String name;
+
+        protected final transient DownloadBatch.Job job;
+
+        protected final transient CronSchedule schedule;
+
+        public final String type;
+
+        public final String cron;
+
+        public boolean running = false;
+
+        public String nextRun;
+
+        public int runs = 0;
+
+        public int failures = 0;
+
+        public DownloadBatch.JobResult lastResult;
+
+        protected JobState(String name, DownloadBatch.Job job) {
+            this.name = name;
+            this.job = job;
+            this.type = job.type;
+            this.cron = job.schedule;
+            this.schedule = job.schedule == null ?
+                    null : CronSchedule.parse(job.schedule);
+        }
+
+    }
+
+    protected final DownloadBatch batch;
+
+    protected final Map<String, JobState> jobs = new LinkedHashMap<>();
+
+    protected final Semaphore permits;
+
+    protected final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("sync-scheduler").factory());
+
+    protected final ExecutorService executor =
+            Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Invalid schedules are reported here, before anything is started.
+     */
+    public SyncService(DownloadBatch batch, DownloadBatch.Manifest manifest) {
+        this.batch = batch;
+        this.permits = new Semaphore(Math.max(1, manifest.concurrency));
+        for (int index = 0; index < manifest.jobs.size(); ++index) {
+            DownloadBatch.Job job = manifest.jobs.get(index);
+            String name = job.name == null ? String.valueOf(index) : job.name;
+            if (jobs.containsKey(name)) {
+                throw new IllegalArgumentException(
+                        "Duplicate job name '" + name + "'.");
+            }
+            jobs.put(name, new JobState(name, job));
+        }
+    }
+
+    public void start() {
+        var now = ZonedDateTime.now();
+        for (JobState state : jobs.values()) {
+            if (state.schedule != null) {
+                scheduleNext(state, now);
+            }
+        }
+        LOG.info("Service started with {} jobs.", jobs.size());
+    }
+
+    /**
+     * Schedule the first run after the previous scheduled one, so a
+     * timer firing slightly early does not run the job twice. When the
+     * timer is late, missed runs are skipped.
+     */
+    protected void scheduleNext(JobState state, ZonedDateTime previous) {
+        var now = ZonedDateTime.now();
+        var next = state.schedule.next(previous.isAfter(now) ? previous : now);
+        synchronized (state) {
+            state.nextRun = next == null ?
+                    null : next.toOffsetDateTime().toString();
+        }
+        if (next == null) {
+            LOG.warn("Job '{}' will never run again.", state.name);
+            return;
+        }
+        long delay = Math.max(0, Duration.between(now, next).toNanos());
+        scheduler.schedule(() -> {
+            if (trigger(state.name) == TriggerResult.ALREADY_RUNNING) {
+                LOG.warn("Job '{}' is still running, skipping scheduled run.",
+                        state.name);
+            }
+            scheduleNext(state, next);
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Start the job unless it is already running. The job may wait
+     * for a free slot before it actually starts.
+     */
+    public TriggerResult trigger(String name) {
+        JobState state = jobs.get(name);
+        if (state == null) {
+            return TriggerResult.NOT_FOUND;
+        }
+        synchronized (state) {
+            if (state.running) {
+                return TriggerResult.ALREADY_RUNNING;
+            }
+            state.running = true;
+        }
+        executor.submit(() -> run(state));
+        return TriggerResult.STARTED;
+    }
+
+    protected void run(JobState state) {
+        DownloadBatch.JobResult result;
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            synchronized (state) {
+                state.running = false;
+            }
+            return;
+        }
+        try {
+            result = batch.executeJob(state.name, state.job);
+        } finally {
+            permits.release();
+        }
+        var metrics = Metrics.getInstance();
+        metrics.counter("sync_jobs_total", "Number of finished job runs.",
+                "job", state.name, "status", result.status()).increment();
+        metrics.histogram("sync_job_duration_seconds",
+                "Duration of job runs.", Metrics.DURATION_BUCKETS,
+                "job", state.name).observe(result.durationMs() / 1000.0);
+        synchronized (state) {
+            state.running = false;
+            state.lastResult = result;
+            ++state.runs;
+            if (!result.isSuccess()) {
+                ++state.failures;
+            }
+        }
+    }
+
+    public JobState getJob(String name) {
+        JobState state = jobs.get(name);
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            return copy(state);
+        }
+    }
+
+    public Collection<JobState> getJobs() {
+        var result = new ArrayList<JobState>(jobs.size());
+        for (JobState state : jobs.values()) {
+            synchronized (state) {
+                result.add(copy(state));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Snapshot of the state, so it can be serialized without locking.
+     */
+    protected static JobState copy(JobState state) {
+        var result = new JobState(state.name, state.job);
+        result.running = state.running;
+        result.nextRun = state.nextRun;
+        result.runs = state.runs;
+        result.failures = state.failures;
+        result.lastResult = state.lastResult;
+        return result;
+    }
+
+    /**
+     * Stop scheduling and wait for running jobs to finish.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        executor.close();
+    }
+
+}
@@ -0,0 +1,176 @@
+package cz.gov.data.ms.http;
+
+import cz.gov.data.ms.metrics.Metrics;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records number, duration and size of requests to the Graph API per
+ * endpoint. Identifiers in the path are replaced by placeholders,
+ * so "/v1.0/sites/x/lists/y/items" is recorded as
+ * "sites/{id}/lists/{id}/items".
+ * <p>
+ * Must be placed after the retry handler, so it sees every attempt.
+ */
+public class MetricsInterceptor implements Interceptor {
+
+    /**
+     * Segments followed by an identifier.
+     */
+    private static final Set<String> COLLECTIONS = Set.of(
+            "sites", "lists", "drives", "items", "columns", "groups", "users");
+
+    private static final Set<String> VERSIONS = Set.of("v1.0", "beta");
+
+    /**
+     * Used for requests outside the Graph API, e.g. file downloads
+     * redirected to SharePoint.
+     */
+    protected static final String EXTERNAL = "external";
+
+    protected final Metrics metrics;
+
+    public MetricsInterceptor() {
+        this(Metrics.getInstance());
+    }
+
+    public MetricsInterceptor(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        var request = chain.request();
+        String endpoint = endpoint(request.url());
+        if (request.header("Retry-Attempt") != null) {
+            metrics.counter("graph_retries_total",
+                    "Number of retried requests.",
+                    "endpoint", endpoint).increment();
+        }
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException ex) {
+            metrics.counter("graph_requests_total",
+                    "Number of requests to the Graph API.",
+                    "endpoint", endpoint, "status", "error").increment();
+            throw ex;
+        }
+        metrics.histogram("graph_request_duration_seconds",
+                "Time until response headers are received.",
+                Metrics.LATENCY_BUCKETS, "endpoint", endpoint)
+                .observe((System.nanoTime() - start) / 1e9);
+        metrics.counter("graph_requests_total",
+                "Number of requests to the Graph API.",
+                "endpoint", endpoint,
+                "status", String.valueOf(response.code())).increment();
+        if (response.body() == null) {
+            return response;
+        }
+        var bytes = metrics.counter("graph_response_bytes_total",
+                "Size of response bodies as read by the client.",
+                "endpoint", endpoint);
+        return response.newBuilder()
+                .body(new CountingBody(response.body(), bytes))
+                .build();
+    }
+
+    public static String endpoint(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        int start = 0;
+        while (start < segments.size()
+                && !VERSIONS.contains(segments.get(start))) {
+            ++start;
+        }
+        if (start == segments.size()) {
+            return EXTERNAL;
+        }
+        var result = new StringBuilder();
+        for (int index = start + 1; index < segments.size(); ++index) {
+            String segment = segments.get(index);
+            if (!result.isEmpty()) {
+                result.append('/');
+            }
+            if (segment.startsWith("root:")) {
+                // Path addressing, "root:/path/to/item:", the path
+                // spans multiple segments.
+                result.append("root:{path}:");
+                if (segment.equals("root:")) {
+                    ++index;
+                }
+                while (index < segments.size() - 1
+                        && !segments.get(index).endsWith(":")) {
+                    ++index;
+                }
+                continue;
+            }
+            result.append(segment);
+            if (COLLECTIONS.contains(segment)
+                    && index < segments.size() - 1) {
+                result.append("/{id}");
+                ++index;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Count bytes as they are consumed, so streamed downloads are counted
+     * without knowing the size in advance.
+     */
+    protected static class CountingBody extends ResponseBody {
+
+        protected final ResponseBody delegate;
+
+        protected final BufferedSource source;
+
+        protected CountingBody(ResponseBody delegate, Metrics.Counter bytes) {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount)
+                        throws IOException {
+                    long result = super.read(sink, byteCount);
+                    if (result > 0) {
+                        bytes.add(result);
+                    }
+                    return result;
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+
+    }
+
+}
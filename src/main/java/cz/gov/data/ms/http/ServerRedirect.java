@@ -0,0 +1,75 @@
+package cz.gov.data.ms.http;
+
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelineNextSyncPolicy;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+
+/**
+ * Sends all requests to another server, keeping the path and the query.
+ * Requests are prepared for the original host, so authentication and
+ * allowed hosts work as without the redirect.
+ * <p>
+ * Used as an OkHttp interceptor for the Graph API and as a pipeline
+ * policy for the identity client, so a training run can exercise the
+ * whole authentication against a local server.
+ */
+public class ServerRedirect implements Interceptor, HttpPipelinePolicy {
+
+    protected final HttpUrl server;
+
+    public ServerRedirect(String server) {
+        this.server = HttpUrl.get(server);
+    }
+
+    /**
+     * The response refers to the original request, so redirect handling
+     * compares hosts as without the redirect.
+     */
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        var request = chain.request();
+        return chain.proceed(request.newBuilder()
+                        .url(redirect(request.url()))
+                        .build())
+                .newBuilder()
+                .request(request)
+                .build();
+    }
+
+    protected HttpUrl redirect(HttpUrl url) {
+        return url.newBuilder()
+                .scheme(server.scheme())
+                .host(server.host())
+                .port(server.port())
+                .build();
+    }
+
+    @Override
+    public Mono<HttpResponse> process(
+            HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+        redirect(context);
+        return next.process();
+    }
+
+    @Override
+    public HttpResponse processSync(
+            HttpPipelineCallContext context, HttpPipelineNextSyncPolicy next) {
+        redirect(context);
+        return next.processSync();
+    }
+
+    protected void redirect(HttpPipelineCallContext context) {
+        var request = context.getHttpRequest();
+        request.setUrl(redirect(HttpUrl.get(request.getUrl().toString()))
+                .toString());
+    }
+
+}
@@ -0,0 +1,258 @@
+package cz.gov.data.ms.http;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits number of requests in flight to the Graph API. The limit is
+ * adjusted using AIMD: it grows by one per round of successful requests,
+ * it is halved on throttling (429, 503) and reduced when latency grows.
+ * <p>
+ * Retry-After is honoured globally, no request is sent before the time
+ * given by the last throttled response.
+ * <p>
+ * Must be placed after the retry handler, so it sees every attempt.
+ * A permit is held until response headers are received.
+ */
+public class ThrottlingLimiter implements Interceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThrottlingLimiter.class);
+
+    public static final int DEFAULT_INITIAL_LIMIT = 8;
+
+    public static final int DEFAULT_MAX_LIMIT = 64;
+
+    /**
+     * Used when a throttled response does not tell us how long to wait.
+     */
+    protected static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(1);
+
+    /**
+     * Request slower than this multiple of the average is a sign of
+     * overloaded service.
+     */
+    protected static final double LATENCY_TOLERANCE = 3.0;
+
+    /**
+     * Weight of a new sample in the latency average.
+     */
+    protected static final double LATENCY_SMOOTHING = 0.05;
+
+    protected static final double THROTTLE_DECREASE = 0.5;
+
+    protected static final double LATENCY_DECREASE = 0.9;
+
+    protected final int maxLimit;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected final Condition available = lock.newCondition();
+
+    protected double limit;
+
+    protected int inFlight = 0;
+
+    /**
+     * No request is sent before this time, in nanoseconds.
+     */
+    protected long pausedUntil = System.nanoTime();
+
+    /**
+     * Limit is decreased at most once per this time, so a burst of
+     * throttled responses for requests sent together counts as one.
+     */
+    protected long lastDecrease = System.nanoTime();
+
+    protected double averageLatency = -1;
+
+    protected long throttleCount = 0;
+
+    public ThrottlingLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    public ThrottlingLimiter(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.clamp(initialLimit, 1, this.maxLimit);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        acquire();
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException | RuntimeException ex) {
+            release();
+            throw ex;
+        }
+        long latency = System.nanoTime() - start;
+        if (isThrottled(response.code())) {
+            onThrottled(readRetryAfter(response.header("Retry-After")));
+        } else {
+            onSuccess(latency);
+        }
+        release();
+        return response;
+    }
+
+    protected void acquire() throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                long wait = pausedUntil - System.nanoTime();
+                if (wait > 0) {
+                    available.awaitNanos(wait);
+                } else if (inFlight >= (int) limit) {
+                    available.await();
+                } else {
+                    break;
+                }
+            }
+            ++inFlight;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void release() {
+        lock.lock();
+        try {
+            --inFlight;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pause all requests and decrease the limit.
+     */
+    public void onThrottled(Duration retryAfter) {
+        lock.lock();
+        try {
+            ++throttleCount;
+            long now = System.nanoTime();
+            pausedUntil = Math.max(pausedUntil, now + retryAfter.toNanos());
+            if (now > lastDecrease) {
+                limit = Math.max(1, limit * THROTTLE_DECREASE);
+                lastDecrease = pausedUntil;
+            }
+            LOG.info("Request throttled, waiting {} ms, limit is {}.",
+                    retryAfter.toMillis(), (int) limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void onSuccess(long latency) {
+        lock.lock();
+        try {
+            if (averageLatency < 0) {
+                averageLatency = latency;
+            }
+            long now = System.nanoTime();
+            if (latency > averageLatency * LATENCY_TOLERANCE) {
+                if (now > lastDecrease) {
+                    limit = Math.max(1, limit * LATENCY_DECREASE);
+                    lastDecrease = now + latency;
+                }
+            } else if (inFlight >= (int) limit) {
+                // Increase only when the limit is actually used,
+                // by one for every limit requests.
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            averageLatency += (latency - averageLatency) * LATENCY_SMOOTHING;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected static boolean isThrottled(int status) {
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * Retry-After is either number of seconds or HTTP date.
+     */
+    protected static Duration readRetryAfter(String value) {
+        if (value == null) {
+            return DEFAULT_RETRY_AFTER;
+        }
+        try {
+            return Duration.ofSeconds(Long.parseLong(value.trim()));
+        } catch (NumberFormatException ex) {
+            // Try the date format.
+        }
+        try {
+            var date = ZonedDateTime.parse(
+                    value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            var result = Duration.between(ZonedDateTime.now(), date);
+            return result.isNegative() ? Duration.ZERO : result;
+        } catch (DateTimeParseException ex) {
+            return DEFAULT_RETRY_AFTER;
+        }
+    }
+
+    /**
+     * Current number of requests allowed in flight.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of throttled responses since the start.
+     */
+    public long getThrottleCount() {
+        lock.lock();
+        try {
+            return throttleCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Time left until requests can be sent again.
+     */
+    public Duration getPause() {
+        lock.lock();
+        try {
+            return Duration.ofNanos(
+                    Math.max(0, pausedUntil - System.nanoTime()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
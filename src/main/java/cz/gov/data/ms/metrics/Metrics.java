@@ -0,0 +1,359 @@
+package cz.gov.data.ms.metrics;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters and histograms collected during a run. Metrics are identified
+ * by name and labels and can be exported in the Prometheus text format
+ * or as a JSON summary.
+ * <p>
+ * There is a single instance for the process, so any component can
+ * record metrics without passing the registry around.
+ */
+public class Metrics {
+
+    private static final Metrics INSTANCE = create();
+
+    /**
+     * Bounds of latency histograms in seconds.
+     */
+    public static final double[] LATENCY_BUCKETS = {
+            0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    /**
+     * Bounds of histograms for whole exports and downloads in seconds.
+     */
+    public static final double[] DURATION_BUCKETS = {
+            1, 5, 15, 30, 60, 120, 300, 600, 1800, 3600};
+
+    public static class Counter {
+
+        protected final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+    }
+
+    public static class Histogram {
+
+        protected final double[] bounds;
+
+        /**
+         * Not cumulative, the last bucket is for values above all bounds.
+         */
+        protected final LongAdder[] buckets;
+
+        protected final DoubleAdder sum = new DoubleAdder();
+
+        protected final LongAdder count = new LongAdder();
+
+        protected Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int index = 0; index < buckets.length; ++index) {
+                buckets[index] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int index = Arrays.binarySearch(bounds, value);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            buckets[index].increment();
+            sum.add(value);
+            count.increment();
+        }
+
+        public void observe(Duration duration) {
+            observe(duration.toNanos() / 1e9);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getSum() {
+            return sum.sum();
+        }
+
+    }
+
+    /**
+     * Metrics of the same name with different labels.
+     */
+    protected record Family(
+            String name, String help, String type,
+            Map<String, Series> metrics) {
+    }
+
+    /**
+     * Metric with given labels.
+     *
+     * @param labels Pairs of label name and value.
+     */
+    protected record Series(String[] labels, Object metric) {
+    }
+
+    protected final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    protected final Instant startedAt = Instant.now();
+
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    protected static Metrics create() {
+        var result = new Metrics();
+        result.registerJvmGauges();
+        return result;
+    }
+
+    protected Metrics() {
+    }
+
+    protected void registerJvmGauges() {
+        gauge("jvm_heap_peak_bytes",
+                "Peak usage of heap memory pools.", Metrics::peakHeap);
+        gauge("jvm_heap_used_bytes", "Used heap memory.",
+                () -> Runtime.getRuntime().totalMemory()
+                        - Runtime.getRuntime().freeMemory());
+    }
+
+    /**
+     * @param labels Pairs of label name and value.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").metrics
+                .computeIfAbsent(labelKey(labels),
+                        key -> new Series(labels, new Counter()))
+                .metric;
+    }
+
+    /**
+     * @param labels Pairs of label name and value.
+     */
+    public Histogram histogram(
+            String name, String help, double[] bounds, String... labels) {
+        return (Histogram) family(name, help, "histogram").metrics
+                .computeIfAbsent(labelKey(labels),
+                        key -> new Series(labels, new Histogram(bounds)))
+                .metric;
+    }
+
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        family(name, help, "gauge").metrics.put(
+                "", new Series(new String[0], supplier));
+    }
+
+    protected Family family(String name, String help, String type) {
+        return families.computeIfAbsent(name, key -> new Family(
+                name, help, type, new ConcurrentHashMap<>()));
+    }
+
+    protected static String labelKey(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be pairs.");
+        }
+        var result = new StringBuilder();
+        for (int index = 0; index < labels.length; index += 2) {
+            if (index > 0) {
+                result.append(',');
+            }
+            result.append(labels[index]).append("=\"")
+                    .append(escape(labels[index + 1])).append('"');
+        }
+        return result.toString();
+    }
+
+    protected static String escape(String value) {
+        return value.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    protected static double peakHeap() {
+        long result = 0;
+        for (MemoryPoolMXBean pool
+                : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP
+                    && pool.getPeakUsage() != null) {
+                result += pool.getPeakUsage().getUsed();
+            }
+        }
+        return result;
+    }
+
+    // https://prometheus.io/docs/instrumenting/exposition_formats/
+    public String toPrometheus() {
+        var result = new StringBuilder();
+        for (Family family : new TreeMap<>(families).values()) {
+            result.append("# HELP ").append(family.name).append(' ')
+                    .append(family.help).append('\n');
+            result.append("# TYPE ").append(family.name).append(' ')
+                    .append(family.type).append('\n');
+            for (var entry : new TreeMap<>(family.metrics).entrySet()) {
+                appendPrometheus(result, family.name, entry.getKey(),
+                        entry.getValue().metric);
+            }
+        }
+        return result.toString();
+    }
+
+    protected static void appendPrometheus(
+            StringBuilder result, String name, String labels, Object metric) {
+        switch (metric) {
+            case Counter counter -> appendSample(
+                    result, name, labels, counter.get());
+            case DoubleSupplier gauge -> appendSample(
+                    result, name, labels, gauge.getAsDouble());
+            case Histogram histogram -> {
+                long cumulative = 0;
+                for (int index = 0; index < histogram.buckets.length;
+                     ++index) {
+                    cumulative += histogram.buckets[index].sum();
+                    String bound = index < histogram.bounds.length ?
+                            formatNumber(histogram.bounds[index]) : "+Inf";
+                    String bucketLabels = labels.isEmpty() ?
+                            "le=\"" + bound + "\"" :
+                            labels + ",le=\"" + bound + "\"";
+                    appendSample(result, name + "_bucket",
+                            bucketLabels, cumulative);
+                }
+                appendSample(result, name + "_sum", labels,
+                        histogram.getSum());
+                appendSample(result, name + "_count", labels,
+                        histogram.getCount());
+            }
+            default -> throw new IllegalStateException(
+                    "Unknown metric " + metric.getClass().getName());
+        }
+    }
+
+    protected static void appendSample(
+            StringBuilder result, String name, String labels, double value) {
+        result.append(name);
+        if (!labels.isEmpty()) {
+            result.append('{').append(labels).append('}');
+        }
+        result.append(' ').append(formatNumber(value)).append('\n');
+    }
+
+    protected static String formatNumber(double value) {
+        return String.valueOf(toNumber(value));
+    }
+
+    /**
+     * Summary of the run with all metrics, histograms are represented
+     * by count, sum and average.
+     */
+    public JsonObject toSummary() {
+        var result = new JsonObject();
+        Instant now = Instant.now();
+        result.addProperty("startedAt", startedAt.toString());
+        result.addProperty("finishedAt", now.toString());
+        result.addProperty("durationMs",
+                Duration.between(startedAt, now).toMillis());
+        var metrics = new JsonArray();
+        for (Family family : new TreeMap<>(families).values()) {
+            for (Series series : new TreeMap<>(family.metrics).values()) {
+                var item = new JsonObject();
+                item.addProperty("name", family.name);
+                var labels = new JsonObject();
+                for (int index = 0; index < series.labels.length;
+                     index += 2) {
+                    labels.addProperty(series.labels[index],
+                            series.labels[index + 1]);
+                }
+                item.add("labels", labels);
+                switch (series.metric) {
+                    case Counter counter ->
+                            item.addProperty("value", counter.get());
+                    case DoubleSupplier gauge ->
+                            item.addProperty("value",
+                                    toNumber(gauge.getAsDouble()));
+                    case Histogram histogram -> {
+                        item.addProperty("count", histogram.getCount());
+                        item.addProperty("sum", histogram.getSum());
+                        if (histogram.getCount() > 0) {
+                            item.addProperty("average", histogram.getSum()
+                                    / histogram.getCount());
+                        }
+                    }
+                    default -> {
+                        continue;
+                    }
+                }
+                metrics.add(item);
+            }
+        }
+        result.add("metrics", metrics);
+        return result;
+    }
+
+    protected static Number toNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return (long) value;
+        }
+        return value;
+    }
+
+    public String toSummaryJson() {
+        return new GsonBuilder().setPrettyPrinting()
+                .disableHtmlEscaping().create().toJson(toSummary());
+    }
+
+    public void writePrometheus(Path path) throws IOException {
+        write(path, toPrometheus());
+    }
+
+    public void writeSummary(Path path) throws IOException {
+        write(path, toSummaryJson());
+    }
+
+    /**
+     * Write using a temporary file, so readers never see partial content.
+     */
+    protected static void write(Path path, String content)
+            throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Path workingPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(workingPath, content, StandardCharsets.UTF_8);
+        Files.move(workingPath, path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,89 @@
+package cz.gov.data.ms.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves metrics on the loopback interface: "/metrics" in the Prometheus
+ * text format and "/summary" as JSON. Other handlers can be added.
+ */
+public class MetricsServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+
+    protected static final String PROMETHEUS_CONTENT_TYPE =
+            "text/plain; version=0.0.4; charset=utf-8";
+
+    protected final Metrics metrics;
+
+    protected final HttpServer server;
+
+    protected final ExecutorService executor;
+
+    /**
+     * @param port Use 0 to pick a free port.
+     */
+    public MetricsServer(Metrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        // Platform threads, the server blocks on writes in synchronized
+        // code and would pin virtual threads.
+        this.executor = Executors.newFixedThreadPool(2);
+        server.setExecutor(executor);
+        server.createContext("/metrics", exchange -> respond(
+                exchange, PROMETHEUS_CONTENT_TYPE, metrics.toPrometheus()));
+        server.createContext("/summary", exchange -> respond(
+                exchange, "application/json; charset=utf-8",
+                metrics.toSummaryJson()));
+    }
+
+    /**
+     * Serve additional content, e.g. an API of the process.
+     */
+    public void addHandler(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    public void start() {
+        server.start();
+        LOG.info("Serving metrics on http://{}:{}/metrics",
+                server.getAddress().getHostString(), getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    protected static void respond(
+            HttpExchange exchange, String contentType, String content)
+            throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = content.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,377 @@
+package cz.gov.data.ms.sharepoint;
+
+import com.microsoft.kiota.serialization.UntypedArray;
+import com.microsoft.kiota.serialization.UntypedNode;
+import com.microsoft.kiota.serialization.UntypedString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Values of a single column stored in a compact form. Numbers and booleans
+ * are stored in primitive arrays with a bitmap of present values, choices,
+ * including multiple choices, are dictionary encoded. Arrays and objects
+ * are stored as {@link StructuredValue}.
+ * <p>
+ * Values can be added while parsing, without creating the Graph values,
+ * or as provided by Graph SDK using {@link #add(Object)}. A value that
+ * does not match the column type is stored in {@link #other}.
+ */
+abstract class ColumnValues {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Values not matching the column type by row, allocated when needed.
+     */
+    protected Object[] other = null;
+
+    protected int size = 0;
+
+    public static ColumnValues create(ColumnType type) {
+        return switch (type) {
+            case Number -> new NumberValues();
+            case Boolean -> new BooleanValues();
+            case Choice -> new ChoiceValues();
+            default -> new GenericValues();
+        };
+    }
+
+    /**
+     * Add value as provided by Graph SDK.
+     */
+    public void add(Object value) {
+        switch (value) {
+            case null -> addNull();
+            case Double typed -> addNumber(typed);
+            case Boolean typed -> addBoolean(typed);
+            case String typed -> addString(typed);
+            case UntypedNode typed -> addCompact(StructuredValue.of(typed));
+            default -> addOther(value);
+        }
+    }
+
+    /**
+     * Add value in the compact form, see {@link StructuredValue}.
+     */
+    protected void addCompact(Object value) {
+        switch (value) {
+            case null -> addNull();
+            case Double typed -> addNumber(typed);
+            case Boolean typed -> addBoolean(typed);
+            case String typed -> addString(typed);
+            case StructuredValue typed -> addStructured(typed);
+            default -> addOther(value);
+        }
+    }
+
+    public void addNull() {
+        reserve(size++);
+    }
+
+    public void addNumber(double value) {
+        addOther(value);
+    }
+
+    public void addBoolean(boolean value) {
+        addOther(value);
+    }
+
+    public void addString(String value) {
+        addOther(value);
+    }
+
+    public void addStructured(StructuredValue value) {
+        addOther(value);
+    }
+
+    protected void addOther(Object value) {
+        int row = size++;
+        reserve(row);
+        if (other == null) {
+            other = new Object[capacity()];
+        } else if (row >= other.length) {
+            other = Arrays.copyOf(other, capacity());
+        }
+        other[row] = value;
+    }
+
+    /**
+     * Make room for the row and set it to no value.
+     */
+    protected abstract void reserve(int row);
+
+    protected abstract int capacity();
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Value as provided by Graph SDK, e.g. Double for numbers and
+     * {@link UntypedArray} for multiple values.
+     */
+    public Object get(int row) {
+        if (other != null && row < other.length && other[row] != null) {
+            return toGraphValue(other[row]);
+        }
+        return getTyped(row);
+    }
+
+    protected Object toGraphValue(Object value) {
+        if (value instanceof StructuredValue typed) {
+            return typed.toUntyped();
+        }
+        return value;
+    }
+
+    protected abstract Object getTyped(int row);
+
+    /**
+     * Value in the compact form, see {@link #addCompact(Object)}.
+     */
+    public Object getCompact(int row) {
+        if (other != null && row < other.length && other[row] != null) {
+            return toCompact(other[row]);
+        }
+        return getTypedCompact(row);
+    }
+
+    protected Object toCompact(Object value) {
+        return value;
+    }
+
+    /**
+     * Typed values are already in the compact form.
+     */
+    protected Object getTypedCompact(int row) {
+        return getTyped(row);
+    }
+
+    /**
+     * Release unused capacity, called once all values were added.
+     */
+    protected void trim() {
+        if (other != null) {
+            other = Arrays.copyOf(other, size);
+        }
+    }
+
+    protected static int grow(int capacity, int required) {
+        return Math.max(required, capacity + (capacity >> 1));
+    }
+
+    static class NumberValues extends ColumnValues {
+
+        protected double[] values = new double[INITIAL_CAPACITY];
+
+        protected final BitSet present = new BitSet();
+
+        @Override
+        public void addNumber(double value) {
+            int row = size++;
+            reserve(row);
+            values[row] = value;
+            present.set(row);
+        }
+
+        @Override
+        protected void reserve(int row) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row + 1));
+            }
+        }
+
+        @Override
+        protected int capacity() {
+            return values.length;
+        }
+
+        @Override
+        protected Object getTyped(int row) {
+            return present.get(row) ? values[row] : null;
+        }
+
+        @Override
+        protected void trim() {
+            super.trim();
+            values = Arrays.copyOf(values, size);
+        }
+
+    }
+
+    static class BooleanValues extends ColumnValues {
+
+        protected final BitSet values = new BitSet();
+
+        protected final BitSet present = new BitSet();
+
+        @Override
+        public void addBoolean(boolean value) {
+            int row = size++;
+            values.set(row, value);
+            present.set(row);
+        }
+
+        @Override
+        protected void reserve(int row) {
+            // BitSet grows on its own.
+        }
+
+        @Override
+        protected int capacity() {
+            return Math.max(INITIAL_CAPACITY, grow(size, size));
+        }
+
+        @Override
+        protected Object getTyped(int row) {
+            return present.get(row) ? values.get(row) : null;
+        }
+
+    }
+
+    /**
+     * Multiple choices are stored as an array of codes in {@link #other}.
+     */
+    static class ChoiceValues extends ColumnValues {
+
+        private static final int NULL_CODE = -1;
+
+        protected final List<String> dictionary = new ArrayList<>();
+
+        protected Map<String, Integer> codesByValue = new HashMap<>();
+
+        protected int[] codes = new int[INITIAL_CAPACITY];
+
+        @Override
+        public void addString(String value) {
+            int row = size++;
+            reserve(row);
+            codes[row] = encode(value);
+        }
+
+        @Override
+        public void addStructured(StructuredValue value) {
+            if (!value.isArray()) {
+                super.addStructured(value);
+                return;
+            }
+            var result = new int[value.items.length];
+            for (int index = 0; index < result.length; ++index) {
+                if (!(value.items[index] instanceof String item)) {
+                    super.addStructured(value);
+                    return;
+                }
+                result[index] = encode(item);
+            }
+            addOther(result);
+        }
+
+        protected int encode(String value) {
+            return codesByValue.computeIfAbsent(value, key -> {
+                dictionary.add(key);
+                return dictionary.size() - 1;
+            });
+        }
+
+        @Override
+        protected void reserve(int row) {
+            if (row >= codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length, row + 1));
+            }
+            codes[row] = NULL_CODE;
+        }
+
+        @Override
+        protected int capacity() {
+            return codes.length;
+        }
+
+        @Override
+        protected Object toGraphValue(Object value) {
+            if (value instanceof int[] typed) {
+                var items = new ArrayList<UntypedNode>(typed.length);
+                for (int code : typed) {
+                    items.add(new UntypedString(dictionary.get(code)));
+                }
+                return new UntypedArray(items);
+            }
+            return super.toGraphValue(value);
+        }
+
+        @Override
+        protected Object toCompact(Object value) {
+            if (value instanceof int[] typed) {
+                var items = new Object[typed.length];
+                for (int index = 0; index < typed.length; ++index) {
+                    items[index] = dictionary.get(typed[index]);
+                }
+                return new StructuredValue(null, items);
+            }
+            return value;
+        }
+
+        @Override
+        protected Object getTyped(int row) {
+            int code = codes[row];
+            return code == NULL_CODE ? null : dictionary.get(code);
+        }
+
+        @Override
+        protected void trim() {
+            super.trim();
+            codes = Arrays.copyOf(codes, size);
+            // Needed only for adding values.
+            codesByValue = null;
+        }
+
+    }
+
+    /**
+     * Values of any type in the compact form.
+     */
+    static class GenericValues extends ColumnValues {
+
+        protected Object[] values = new Object[INITIAL_CAPACITY];
+
+        @Override
+        protected void addOther(Object value) {
+            int row = size++;
+            reserve(row);
+            values[row] = value;
+        }
+
+        @Override
+        protected void reserve(int row) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row + 1));
+            }
+        }
+
+        @Override
+        protected int capacity() {
+            return values.length;
+        }
+
+        @Override
+        protected Object getTyped(int row) {
+            return toGraphValue(values[row]);
+        }
+
+        @Override
+        protected Object getTypedCompact(int row) {
+            return values[row];
+        }
+
+        @Override
+        protected void trim() {
+            values = Arrays.copyOf(values, size);
+        }
+
+    }
+
+}
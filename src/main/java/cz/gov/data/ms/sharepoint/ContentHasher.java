@@ -0,0 +1,99 @@
+package cz.gov.data.ms.sharepoint;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Computes hash of a content as it is being downloaded.
+ */
+abstract class ContentHasher {
+
+    public static final String QUICK_XOR_HASH = "quickXorHash";
+
+    public static final String SHA1_HASH = "sha1Hash";
+
+    public static final String SHA256_HASH = "sha256Hash";
+
+    public final String algorithm;
+
+    protected ContentHasher(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Return hasher for the algorithm, for unknown or null algorithm
+     * quickXorHash is used.
+     */
+    public static ContentHasher create(String algorithm) {
+        if (SHA1_HASH.equals(algorithm)) {
+            return new Digest(algorithm, "SHA-1");
+        } else if (SHA256_HASH.equals(algorithm)) {
+            return new Digest(algorithm, "SHA-256");
+        } else {
+            return new QuickXor();
+        }
+    }
+
+    /**
+     * SHA hashes are in hexadecimal with unspecified case, quickXorHash
+     * is in base64 where the case matters.
+     */
+    public static boolean matches(
+            String algorithm, String expected, String actual) {
+        if (SHA1_HASH.equals(algorithm) || SHA256_HASH.equals(algorithm)) {
+            return expected.equalsIgnoreCase(actual);
+        }
+        return expected.equals(actual);
+    }
+
+    public abstract void update(byte[] buffer, int offset, int length);
+
+    public abstract String value();
+
+    private static class QuickXor extends ContentHasher {
+
+        private final QuickXorHash hash = new QuickXorHash();
+
+        QuickXor() {
+            super(QUICK_XOR_HASH);
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            hash.update(buffer, offset, length);
+        }
+
+        @Override
+        public String value() {
+            return hash.digest();
+        }
+
+    }
+
+    private static class Digest extends ContentHasher {
+
+        private final MessageDigest digest;
+
+        Digest(String algorithm, String digestAlgorithm) {
+            super(algorithm);
+            try {
+                digest = MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            digest.update(buffer, offset, length);
+        }
+
+        @Override
+        public String value() {
+            return HexFormat.of().withUpperCase().formatHex(digest.digest());
+        }
+
+    }
+
+}
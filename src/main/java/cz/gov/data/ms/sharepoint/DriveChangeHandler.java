@@ -0,0 +1,26 @@
+package cz.gov.data.ms.sharepoint;
+
+/**
+ * Receives changes of drive items reported by the delta query.
+ */
+public interface DriveChangeHandler {
+
+    /**
+     * File was created or updated.
+     *
+     * @param parentIdentifier Identifier of the parent folder.
+     */
+    void onFileChanged(String parentIdentifier, DriveManifestEntry file);
+
+    /**
+     * Item was deleted, the item may not be a file.
+     */
+    void onDeleted(String identifier);
+
+    /**
+     * The delta link expired and all items are going to be reported again.
+     * Items that are not reported again no longer exist.
+     */
+    void onReset();
+
+}
@@ -0,0 +1,149 @@
+package cz.gov.data.ms.sharepoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content of a local mirror of a drive directory together with the delta
+ * link to ask for changes.
+ * <p>
+ * Stored in a binary format, so it loads fast even for large libraries.
+ */
+public class DriveManifest {
+
+    private static final int MAGIC = 0x4D53414D;
+
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public final String driveIdentifier;
+
+    public final String directoryIdentifier;
+
+    /**
+     * Link to use to ask for changes, null when we have no state.
+     */
+    public String deltaLink;
+
+    /**
+     * File identifier to entry.
+     */
+    protected final Map<String, DriveManifestEntry> entries;
+
+    public DriveManifest(String driveIdentifier, String directoryIdentifier) {
+        this(driveIdentifier, directoryIdentifier, new HashMap<>());
+    }
+
+    protected DriveManifest(
+            String driveIdentifier, String directoryIdentifier,
+            Map<String, DriveManifestEntry> entries) {
+        this.driveIdentifier = driveIdentifier;
+        this.directoryIdentifier = directoryIdentifier;
+        this.entries = entries;
+    }
+
+    /**
+     * Return null when there is no manifest.
+     */
+    public static DriveManifest load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (var input = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Invalid manifest file '" + path + "'.");
+            }
+            String driveIdentifier = input.readUTF();
+            String directoryIdentifier = input.readUTF();
+            String deltaLink = readNullable(input);
+            int size = input.readInt();
+            var entries = new HashMap<String, DriveManifestEntry>(
+                    size * 4 / 3 + 1);
+            for (int index = 0; index < size; ++index) {
+                var entry = new DriveManifestEntry(
+                        driveIdentifier,
+                        input.readUTF(),
+                        input.readUTF(),
+                        input.readLong(),
+                        readNullable(input),
+                        readNullable(input),
+                        readNullable(input),
+                        readNullable(input));
+                entries.put(entry.fileIdentifier, entry);
+            }
+            var result = new DriveManifest(
+                    driveIdentifier, directoryIdentifier, entries);
+            result.deltaLink = deltaLink;
+            return result;
+        }
+    }
+
+    private static String readNullable(DataInputStream input)
+            throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    public DriveManifestEntry get(String fileIdentifier) {
+        return entries.get(fileIdentifier);
+    }
+
+    public Collection<DriveManifestEntry> entries() {
+        return entries.values();
+    }
+
+    public void put(DriveManifestEntry entry) {
+        entries.put(entry.fileIdentifier, entry);
+    }
+
+    public DriveManifestEntry remove(String fileIdentifier) {
+        return entries.remove(fileIdentifier);
+    }
+
+    /**
+     * Write into a temporary file and replace the original one.
+     */
+    public void save(Path path) throws IOException {
+        Path workingPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(workingPath), BUFFER_SIZE))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(driveIdentifier);
+            output.writeUTF(directoryIdentifier);
+            writeNullable(output, deltaLink);
+            output.writeInt(entries.size());
+            for (DriveManifestEntry entry : entries.values()) {
+                output.writeUTF(entry.fileIdentifier);
+                output.writeUTF(entry.fileName);
+                output.writeLong(entry.size);
+                writeNullable(output, entry.eTag);
+                writeNullable(output, entry.cTag);
+                writeNullable(output, entry.hashAlgorithm);
+                writeNullable(output, entry.hash);
+            }
+        }
+        Files.move(workingPath, path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeNullable(DataOutputStream output, String value)
+            throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package cz.gov.data.ms.sharepoint;
+
+/**
+ * File as it was downloaded into a local mirror.
+ */
+public class DriveManifestEntry extends SharepointFile {
+
+    /**
+     * Changes with any change of the item, including metadata.
+     */
+    public final String eTag;
+
+    /**
+     * Changes only with change of the content.
+     */
+    public final String cTag;
+
+    /**
+     * Name of the hash algorithm as used by Graph, e.g. "quickXorHash".
+     * Null when there is no hash.
+     */
+    public final String hashAlgorithm;
+
+    public final String hash;
+
+    public DriveManifestEntry(
+            String driveIdentifier, String fileIdentifier, String fileName,
+            long size, String eTag, String cTag,
+            String hashAlgorithm, String hash) {
+        super(driveIdentifier, fileIdentifier, fileName, size);
+        this.eTag = eTag;
+        this.cTag = cTag;
+        this.hashAlgorithm = hashAlgorithm;
+        this.hash = hash;
+    }
+
+    /**
+     * Return true when the other entry has the same content.
+     */
+    public boolean sameContent(DriveManifestEntry other) {
+        if (cTag != null && other.cTag != null) {
+            return cTag.equals(other.cTag);
+        }
+        return hash != null && hash.equals(other.hash) && size == other.size;
+    }
+
+}
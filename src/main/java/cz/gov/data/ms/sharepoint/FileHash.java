@@ -0,0 +1,24 @@
+package cz.gov.data.ms.sharepoint;
+
+import java.util.Objects;
+
+/**
+ * Hash of a downloaded file.
+ *
+ * @param algorithm Name of the hash algorithm as used by Graph.
+ * @param verified True when the hash was compared with the one provided
+ *                 by Graph.
+ */
+public record FileHash(String algorithm, String value, boolean verified) {
+
+    /**
+     * Return true for the same hash, hashes of different algorithms
+     * never match.
+     */
+    public boolean matches(String algorithm, String value) {
+        return Objects.equals(this.algorithm, algorithm)
+                && this.value != null && value != null
+                && ContentHasher.matches(algorithm, value, this.value);
+    }
+
+}
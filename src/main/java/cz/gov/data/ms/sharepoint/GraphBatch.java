@@ -0,0 +1,231 @@
+package cz.gov.data.ms.sharepoint;
+
+import com.microsoft.graph.core.content.BatchRequestContent;
+import com.microsoft.graph.core.content.BatchResponseContent;
+import com.microsoft.graph.core.requests.ResponseBodyHandler;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiException;
+import com.microsoft.kiota.ApiExceptionBuilder;
+import com.microsoft.kiota.RequestInformation;
+import com.microsoft.kiota.serialization.Parsable;
+import com.microsoft.kiota.serialization.ParsableFactory;
+import cz.gov.data.ms.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects independent requests and executes them using
+ * <a href="https://learn.microsoft.com/en-us/graph/json-batching">JSON batching</a>,
+ * so up to {@link #MAX_BATCH_SIZE} requests take a single round-trip.
+ * <p>
+ * Add all requests, call {@link #execute()} and then read the responses.
+ */
+public class GraphBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GraphBatch.class);
+
+    /**
+     * Limit given by Graph API.
+     */
+    public static final int MAX_BATCH_SIZE = 20;
+
+    /**
+     * Number of attempts for throttled requests.
+     */
+    protected static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Used when the throttled response does not tell us how long to wait.
+     */
+    protected static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    /**
+     * Response of a request in the batch.
+     */
+    public static class Response<T extends Parsable> {
+
+        protected final RequestInformation request;
+
+        protected final ParsableFactory<T> factory;
+
+        protected T value;
+
+        protected ApiException error;
+
+        protected boolean done = false;
+
+        protected Response(
+                RequestInformation request, ParsableFactory<T> factory) {
+            this.request = request;
+            this.factory = factory;
+        }
+
+        /**
+         * Return the response or throw if the request failed.
+         */
+        public T get() {
+            if (!done) {
+                throw new IllegalStateException("Batch was not executed.");
+            }
+            if (error != null) {
+                throw error;
+            }
+            return value;
+        }
+
+        /**
+         * The request fails when there is no response for it.
+         */
+        protected void complete(
+                BatchResponseContent content, String id, Integer status) {
+            done = true;
+            if (status == null) {
+                error = new ApiExceptionBuilder()
+                        .withMessage("Missing response in batch.")
+                        .build();
+                return;
+            }
+            if (!BatchResponseContent.isSuccessStatusCode(status)) {
+                error = new ApiExceptionBuilder()
+                        .withMessage("Batch request failed with status "
+                                + status + ".")
+                        .withResponseStatusCode(status)
+                        .build();
+                return;
+            }
+            try (okhttp3.Response response = content.getResponseById(id)) {
+                if (response != null) {
+                    value = new ResponseBodyHandler<>(factory)
+                            .handleResponse(response, new HashMap<>());
+                }
+            } catch (RuntimeException ex) {
+                error = new ApiExceptionBuilder()
+                        .withMessage("Invalid response in batch.")
+                        .withResponseStatusCode(status)
+                        .withThrowable(ex)
+                        .build();
+            }
+        }
+
+    }
+
+    protected final GraphServiceClient graphServiceClient;
+
+    protected final List<Response<?>> pending = new ArrayList<>();
+
+    public GraphBatch(GraphServiceClient graphServiceClient) {
+        this.graphServiceClient = graphServiceClient;
+    }
+
+    public <T extends Parsable> Response<T> add(
+            RequestInformation request, ParsableFactory<T> factory) {
+        var result = new Response<>(request, factory);
+        pending.add(result);
+        return result;
+    }
+
+    /**
+     * Execute all added requests. Failure of a single request does not
+     * fail the batch, it is reported by the response.
+     */
+    public void execute() {
+        var requests = new ArrayList<>(pending);
+        pending.clear();
+        for (int attempt = 1; !requests.isEmpty(); ++attempt) {
+            var throttled = new ArrayList<Response<?>>();
+            long retryAfter = 0;
+            for (int start = 0; start < requests.size();
+                 start += MAX_BATCH_SIZE) {
+                var chunk = requests.subList(start,
+                        Math.min(start + MAX_BATCH_SIZE, requests.size()));
+                retryAfter = Math.max(retryAfter,
+                        executeChunk(chunk, throttled, attempt));
+            }
+            requests = throttled;
+            if (!requests.isEmpty()) {
+                LOG.info("{} batch requests were throttled, retry in {} s.",
+                        requests.size(), retryAfter);
+                sleep(retryAfter);
+            }
+        }
+    }
+
+    /**
+     * Return number of seconds to wait before throttled requests,
+     * which are added to given list, can be retried.
+     */
+    protected long executeChunk(
+            List<Response<?>> chunk, List<Response<?>> throttled,
+            int attempt) {
+        var content = new BatchRequestContent(
+                graphServiceClient, new ArrayList<>());
+        var identifiers = new ArrayList<String>(chunk.size());
+        for (Response<?> response : chunk) {
+            identifiers.add(content.addBatchRequestStep(response.request));
+        }
+        BatchResponseContent responseContent;
+        try {
+            responseContent = graphServiceClient.getBatchRequestBuilder()
+                    .post(content, null);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        Metrics.getInstance().counter("graph_batch_steps_total",
+                "Number of requests sent in batches.").add(chunk.size());
+        long retryAfter = 0;
+        var statusCodes = responseContent.getResponsesStatusCode();
+        for (int index = 0; index < chunk.size(); ++index) {
+            String id = identifiers.get(index);
+            var response = chunk.get(index);
+            Integer status = statusCodes.get(id);
+            if (status != null && isThrottled(status)
+                    && attempt < MAX_ATTEMPTS) {
+                throttled.add(response);
+                Metrics.getInstance().counter(
+                        "graph_batch_steps_throttled_total",
+                        "Number of requests in batches throttled.")
+                        .increment();
+                try (var throttledResponse =
+                             responseContent.getResponseById(id)) {
+                    retryAfter = Math.max(retryAfter,
+                            readRetryAfter(throttledResponse));
+                }
+                continue;
+            }
+            response.complete(responseContent, id, status);
+        }
+        return retryAfter;
+    }
+
+    protected static boolean isThrottled(int status) {
+        return status == 429 || status == 503;
+    }
+
+    protected static long readRetryAfter(okhttp3.Response response) {
+        String value = response == null ? null : response.header("Retry-After");
+        if (value == null) {
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+    }
+
+    protected static void sleep(long seconds) {
+        try {
+            Thread.sleep(seconds * 1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted.", ex);
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package cz.gov.data.ms.sharepoint;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes a page of list items directly into {@link SharepointList},
+ * without building the Graph model. Only fields of the columns are
+ * decoded, other properties are skipped. Numbers and booleans go
+ * straight into the primitive arrays.
+ * <p>
+ * Values read from the list are of the same types as in ListItem fields
+ * parsed by the Graph SDK, so the conversion to RDF is the same for both.
+ *
+ * @see com.microsoft.graph.models.ListItem
+ */
+public class ListItemPageReader {
+
+    /**
+     * Items of the page and link to the next page, or null.
+     */
+    public record Page(SharepointList list, String nextLink) {
+    }
+
+    protected final List<Column> columns;
+
+    /**
+     * Names of object properties, so they are shared by all values.
+     */
+    protected final Map<String, String> names = new HashMap<>();
+
+    public ListItemPageReader(List<Column> columns) {
+        this.columns = columns;
+    }
+
+    public Page read(Reader input) throws IOException {
+        var reader = new JsonReader(input);
+        var builder = new SharepointList.Builder(columns);
+        String nextLink = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "value" -> readItems(reader, builder);
+                case "@odata.nextLink" -> nextLink = readString(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Page(builder.build(), nextLink);
+    }
+
+    protected void readItems(
+            JsonReader reader, SharepointList.Builder builder)
+            throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readItem(reader, builder);
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Read an item and add it to the builder, same as
+     * {@link SharepointList.Builder#onRow(Row)}.
+     */
+    protected void readItem(
+            JsonReader reader, SharepointList.Builder builder)
+            throws IOException {
+        String identifier = null;
+        BitSet seen = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id" -> identifier = readString(reader);
+                case "fields" -> seen = readFields(reader, builder);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (seen == null) {
+            builder.addRowWithoutFields(identifier);
+            return;
+        }
+        // Missing fields are null.
+        for (int index = seen.nextClearBit(0); index < columns.size();
+             index = seen.nextClearBit(index + 1)) {
+            builder.valuesAt(index).addNull();
+        }
+        builder.identifiers.add(identifier);
+    }
+
+    /**
+     * Return columns with a value, or null when there are no fields.
+     */
+    protected BitSet readFields(
+            JsonReader reader, SharepointList.Builder builder)
+            throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        var result = new BitSet(columns.size());
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Integer index = builder.indexOf(reader.nextName());
+            if (index == null || result.get(index)) {
+                reader.skipValue();
+            } else {
+                readValue(reader, builder.valuesAt(index));
+                result.set(index);
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    protected static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    protected void readValue(JsonReader reader, ColumnValues values)
+            throws IOException {
+        switch (reader.peek()) {
+            case STRING -> values.addString(reader.nextString());
+            // Parse ourselves, the reader rejects infinity.
+            case NUMBER -> values.addNumber(
+                    Double.parseDouble(reader.nextString()));
+            case BOOLEAN -> values.addBoolean(reader.nextBoolean());
+            case NULL -> {
+                reader.nextNull();
+                values.addNull();
+            }
+            default -> values.addStructured(readContainer(reader));
+        }
+    }
+
+    /**
+     * Structured values are parsed as by the Graph SDK, all numbers
+     * are doubles.
+     */
+    protected Object readStructured(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING -> {
+                return reader.nextString();
+            }
+            case NUMBER -> {
+                return Double.parseDouble(reader.nextString());
+            }
+            case BOOLEAN -> {
+                return reader.nextBoolean();
+            }
+            case NULL -> {
+                reader.nextNull();
+                return null;
+            }
+            default -> {
+                return readContainer(reader);
+            }
+        }
+    }
+
+    /**
+     * Read an array or an object.
+     */
+    protected StructuredValue readContainer(JsonReader reader)
+            throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY -> {
+                var items = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    items.add(readStructured(reader));
+                }
+                reader.endArray();
+                return new StructuredValue(null, items.toArray());
+            }
+            case BEGIN_OBJECT -> {
+                var properties = new ArrayList<String>();
+                var items = new ArrayList<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    properties.add(names.computeIfAbsent(name, key -> key));
+                    items.add(readStructured(reader));
+                }
+                reader.endObject();
+                return new StructuredValue(
+                        properties.toArray(new String[0]), items.toArray());
+            }
+            default -> throw new IOException("Unexpected token "
+                    + reader.peek() + " at " + reader.getPath() + ".");
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package cz.gov.data.ms.sharepoint;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.rio.helpers.NTriplesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Compares rows with the {@link RowIndex} of the previous run and writes
+ * changes as SPARQL Update. Removed and changed rows are deleted by their
+ * IRI, added and changed rows are inserted. Applying the update to the
+ * output of the previous run gives the output of this run.
+ * <p>
+ * Rows are not converted again, the writer receives the statements of
+ * each row from the main conversion. Rows must have identifiers, they are
+ * identified by skolem IRIs, see {@link SharePointListToRdf#createRowIri}.
+ */
+public class ListPatchWriter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ListPatchWriter.class);
+
+    /**
+     * Row compared with the previous run, statements are kept only when
+     * the row is added or changed.
+     */
+    public record ComparedRow(RowIndex.Entry entry, List<Statement> statements) {
+    }
+
+    protected final String url;
+
+    protected final RowIndex previous;
+
+    protected final Writer writer;
+
+    protected final RowIndex current = RowIndex.empty();
+
+    /**
+     * Rows may be compared by the conversion threads.
+     */
+    protected final ThreadLocal<MessageDigest> digest =
+            ThreadLocal.withInitial(ListPatchWriter::createDigest);
+
+    protected int added = 0;
+
+    protected int changed = 0;
+
+    protected int removed = 0;
+
+    public ListPatchWriter(String url, RowIndex previous, Writer writer) {
+        this.url = url;
+        this.previous = previous;
+        this.writer = writer;
+    }
+
+    protected static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Missing SHA-256.", ex);
+        }
+    }
+
+    /**
+     * Compare and write the row, must be called in order of rows.
+     */
+    public void onRow(String identifier, List<Statement> statements) {
+        onComparedRow(compare(identifier, statements));
+    }
+
+    /**
+     * Compare statements of a row with the previous run, can be called
+     * from any thread.
+     */
+    public ComparedRow compare(String identifier, List<Statement> statements) {
+        if (identifier == null) {
+            throw new IllegalArgumentException(
+                    "Row without identifier can not be compared.");
+        }
+        String iri = SharePointListToRdf.rowIri(url, identifier);
+        var entry = new RowIndex.Entry(identifier, iri, hash(statements));
+        if (entry.equals(previous.get(identifier))) {
+            return new ComparedRow(entry, null);
+        }
+        return new ComparedRow(entry, List.copyOf(statements));
+    }
+
+    /**
+     * Write the compared row, must be called in order of rows.
+     */
+    public void onComparedRow(ComparedRow row) {
+        current.put(row.entry);
+        if (row.statements == null) {
+            return;
+        }
+        var last = previous.get(row.entry.identifier());
+        try {
+            if (last == null) {
+                ++added;
+            } else {
+                ++changed;
+                writeDelete(last.iri());
+            }
+            writeInsert(row.statements);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Statements of a row are produced in order of columns, so the hash
+     * does not depend on the order of rows or on the output format.
+     */
+    protected String hash(List<Statement> statements) {
+        var digest = this.digest.get();
+        digest.reset();
+        for (Statement statement : statements) {
+            digest.update(NTriplesUtil.toNTriplesString(
+                    statement.getPredicate()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ' ');
+            digest.update(NTriplesUtil.toNTriplesString(
+                    statement.getObject()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    protected void writeDelete(String iri) throws IOException {
+        writer.write("DELETE WHERE { <");
+        writer.write(iri);
+        writer.write("> ?p ?o } ;\n");
+    }
+
+    protected void writeInsert(List<Statement> statements)
+            throws IOException {
+        writer.write("INSERT DATA {\n");
+        for (Statement statement : statements) {
+            // N-Triples terms are valid SPARQL terms.
+            writer.write(NTriplesUtil.toNTriplesString(statement.getSubject()));
+            writer.write(' ');
+            writer.write(NTriplesUtil.toNTriplesString(statement.getPredicate()));
+            writer.write(' ');
+            writer.write(NTriplesUtil.toNTriplesString(statement.getObject()));
+            writer.write(" .\n");
+        }
+        writer.write("} ;\n");
+    }
+
+    /**
+     * Delete rows not present in this run, must be called once all
+     * rows were processed.
+     */
+    public void finish() throws IOException {
+        for (RowIndex.Entry entry : previous.entries()) {
+            if (current.get(entry.identifier()) == null) {
+                ++removed;
+                writeDelete(entry.iri());
+            }
+        }
+        writer.flush();
+        LOG.info("Patch contains {} added, {} changed and {} removed rows.",
+                added, changed, removed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Index of this run, to be saved once the patch is written.
+     */
+    public RowIndex getIndex() {
+        return current;
+    }
+
+}
@@ -0,0 +1,371 @@
+package cz.gov.data.ms.sharepoint;
+
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local copy of list items together with the delta link, used to
+ * download only changes since the last run.
+ * <p>
+ * The file is gzipped, the first line is the delta link, the second line
+ * is a JSON array with names of the columns. Every other line is an item
+ * in JSON with the identifier and fields of the columns only, same as in
+ * Graph responses. The delta link asks only for fields of the columns,
+ * so the snapshot can not be used once the columns change.
+ * <p>
+ * Items are not loaded into memory. Only the changes are kept, stored
+ * by columns, and they are merged with the items as the file is read
+ * by {@link #replay(SharepointListHandler)}. The updated items are
+ * written into a working file at the same time, {@link #save()}
+ * then replaces the snapshot.
+ */
+public class ListSnapshot {
+
+    /**
+     * Number of items read from the file and reported as a single page.
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Link to use to ask for changes, null when we have no state.
+     */
+    public String deltaLink;
+
+    protected final Path path;
+
+    /**
+     * True when the file holds items of the snapshot.
+     */
+    protected boolean stored = false;
+
+    /**
+     * Names of columns with fields in the file, null when unknown.
+     */
+    protected List<String> storedColumns = null;
+
+    protected List<Column> columns = List.of();
+
+    /**
+     * Changed and new items.
+     */
+    protected SharepointList.Builder changed = new SharepointList.Builder();
+
+    /**
+     * Row in {@link #changed} with the latest version of an item.
+     */
+    protected final Map<String, Integer> changedRows = new HashMap<>();
+
+    protected final Set<String> removed = new HashSet<>();
+
+    /**
+     * Updated snapshot written by {@link #replay(SharepointListHandler)}.
+     */
+    protected Path workingPath = null;
+
+    protected ListSnapshot(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Only the delta link and the columns are read, items are read when
+     * replayed. Files without the columns are treated as empty.
+     */
+    public static ListSnapshot load(Path path) throws IOException {
+        var result = new ListSnapshot(path);
+        if (!Files.exists(path)) {
+            return result;
+        }
+        try (var reader = openReader(path)) {
+            String deltaLink = reader.readLine();
+            if (deltaLink == null || deltaLink.isEmpty()) {
+                return result;
+            }
+            String columns = reader.readLine();
+            if (columns == null || !columns.startsWith("[")) {
+                return result;
+            }
+            result.storedColumns = readColumnNames(columns);
+            result.deltaLink = deltaLink;
+            result.stored = true;
+        }
+        return result;
+    }
+
+    protected static BufferedReader openReader(Path path) throws IOException {
+        return new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(path)),
+                StandardCharsets.UTF_8));
+    }
+
+    protected static List<String> readColumnNames(String line)
+            throws IOException {
+        var result = new ArrayList<String>();
+        var reader = new JsonReader(new StringReader(line));
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(reader.nextString());
+        }
+        reader.endArray();
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return deltaLink == null;
+    }
+
+    /**
+     * True when the file holds fields of exactly the given columns.
+     */
+    public boolean hasColumns(List<Column> columns) {
+        return columnNames(columns).equals(storedColumns);
+    }
+
+    protected static List<String> columnNames(List<Column> columns) {
+        return columns.stream().map(column -> column.name).toList();
+    }
+
+    /**
+     * Columns of the items, must be set before any change is applied.
+     * Fields of other columns are dropped from the snapshot.
+     */
+    public void setColumns(List<Column> columns) {
+        this.columns = columns;
+        this.changed = new SharepointList.Builder(columns);
+        this.changedRows.clear();
+    }
+
+    /**
+     * Add or replace the item.
+     */
+    public void update(Row row) {
+        removed.remove(row.identifier);
+        changedRows.put(row.identifier, changed.identifiers.size());
+        changed.onRow(row);
+    }
+
+    public void remove(String identifier) {
+        changedRows.remove(identifier);
+        removed.add(identifier);
+    }
+
+    /**
+     * Forget all items, including the changes.
+     */
+    public void clear() {
+        deltaLink = null;
+        stored = false;
+        setColumns(columns);
+        removed.clear();
+    }
+
+    /**
+     * Report all items, with the changes applied, to the handler page by
+     * page. Columns are not reported.
+     */
+    public void replay(SharepointListHandler handler) throws IOException {
+        var changes = changed.build();
+        var replaced = new HashSet<String>();
+        workingPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(workingPath)),
+                StandardCharsets.UTF_8))) {
+            writer.write(deltaLink == null ? "" : deltaLink);
+            writer.write('\n');
+            writeColumnNames(writer);
+            if (stored) {
+                replayFile(changes, replaced, writer, handler);
+            }
+            // New items go last.
+            var page = new SharepointList.Builder(columns);
+            for (int row = 0; row < changes.rowCount; ++row) {
+                String identifier = changes.identifiers.get(row);
+                if (!replaced.contains(identifier)
+                        && isLatest(identifier, row)) {
+                    page.addRow(changes, row);
+                }
+            }
+            writePage(page.build(), writer, handler);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(workingPath);
+            workingPath = null;
+            throw ex;
+        }
+    }
+
+    protected void writeColumnNames(Writer output) throws IOException {
+        var writer = new JsonWriter(output);
+        writer.beginArray();
+        for (Column column : columns) {
+            writer.value(column.name);
+        }
+        writer.endArray();
+        writer.flush();
+        output.write('\n');
+    }
+
+    protected void replayFile(
+            SharepointList changes, Set<String> replaced, Writer writer,
+            SharepointListHandler handler) throws IOException {
+        var itemReader = new ListItemPageReader(columns);
+        try (var input = openReader(path)) {
+            // Skip the delta link and the columns.
+            input.readLine();
+            input.readLine();
+            var reader = new JsonReader(input);
+            // Items are top level values, one per line.
+            reader.setStrictness(Strictness.LENIENT);
+            var items = new SharepointList.Builder(columns);
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                itemReader.readItem(reader, items);
+                if (items.identifiers.size() == PAGE_SIZE) {
+                    replayPage(items.build(), changes, replaced,
+                            writer, handler);
+                    items = new SharepointList.Builder(columns);
+                }
+            }
+            replayPage(items.build(), changes, replaced, writer, handler);
+        }
+    }
+
+    protected void replayPage(
+            SharepointList items, SharepointList changes,
+            Set<String> replaced, Writer writer,
+            SharepointListHandler handler) throws IOException {
+        var page = new SharepointList.Builder(columns);
+        for (int row = 0; row < items.rowCount; ++row) {
+            String identifier = items.identifiers.get(row);
+            if (removed.contains(identifier)) {
+                continue;
+            }
+            Integer changedRow = changedRows.get(identifier);
+            if (changedRow == null) {
+                page.addRow(items, row);
+            } else {
+                page.addRow(changes, changedRow);
+                replaced.add(identifier);
+            }
+        }
+        writePage(page.build(), writer, handler);
+    }
+
+    protected boolean isLatest(String identifier, int row) {
+        Integer latest = changedRows.get(identifier);
+        return latest != null && latest == row;
+    }
+
+    protected void writePage(
+            SharepointList page, Writer writer,
+            SharepointListHandler handler) throws IOException {
+        for (int row = 0; row < page.rowCount; ++row) {
+            writeItem(page, row, writer);
+        }
+        if (page.rowCount > 0) {
+            handler.onPage(page);
+        }
+    }
+
+    /**
+     * Write item as returned by Graph, null values are omitted.
+     */
+    protected static void writeItem(
+            SharepointList page, int row, Writer output) throws IOException {
+        var writer = new JsonWriter(output);
+        writer.beginObject();
+        writer.name("id").value(page.identifiers.get(row));
+        if (!page.withoutFields.get(row)) {
+            writer.name("fields").beginObject();
+            for (int index = 0; index < page.columns.size(); ++index) {
+                Object value = page.values[index].getCompact(row);
+                if (value != null) {
+                    writer.name(page.columns.get(index).name);
+                    writeValue(writer, value);
+                }
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.flush();
+        output.write('\n');
+    }
+
+    protected static void writeValue(JsonWriter writer, Object value)
+            throws IOException {
+        switch (value) {
+            case null -> writer.nullValue();
+            case String typed -> writer.value(typed);
+            case Double typed -> writer.value(typed);
+            case Boolean typed -> writer.value(typed);
+            case StructuredValue typed -> {
+                if (typed.isArray()) {
+                    writer.beginArray();
+                    for (Object item : typed.items) {
+                        writeValue(writer, item);
+                    }
+                    writer.endArray();
+                } else {
+                    writer.beginObject();
+                    for (int index = 0; index < typed.items.length; ++index) {
+                        writer.name(typed.names[index]);
+                        writeValue(writer, typed.items[index]);
+                    }
+                    writer.endObject();
+                }
+            }
+            default -> writer.value(value.toString());
+        }
+    }
+
+    /**
+     * Replace the snapshot file with the items written by
+     * {@link #replay(SharepointListHandler)}.
+     */
+    public void save() throws IOException {
+        if (workingPath == null) {
+            replay(new SharepointListHandler() {
+
+                @Override
+                public void onColumns(List<Column> columns) {
+                    // Not reported.
+                }
+
+                @Override
+                public void onRow(Row row) {
+                    // We only write the file.
+                }
+
+            });
+        }
+        Files.move(workingPath, path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        workingPath = null;
+        // Changes are now part of the file.
+        stored = true;
+        storedColumns = columnNames(columns);
+        setColumns(columns);
+        removed.clear();
+    }
+
+}
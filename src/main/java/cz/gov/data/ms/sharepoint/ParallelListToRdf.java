@@ -0,0 +1,221 @@
+package cz.gov.data.ms.sharepoint;
+
+import cz.gov.data.rdf.OutputFormat;
+import cz.gov.data.rdf.StatementsBuilder;
+import org.eclipse.rdf4j.model.Statement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts rows to RDF in chunks using multiple threads. Every chunk is
+ * converted by its own {@link SharePointListToRdf}, as the conversion is
+ * stateful, and serialized into a buffer. Buffers are written to the
+ * output in order of the rows.
+ * <p>
+ * Only line based formats can be used, as their documents can be
+ * concatenated. When compression is enabled every chunk is compressed
+ * into a separate gzip member, a sequence of members is a valid gzip file.
+ * <p>
+ * With a {@link ListPatchWriter} rows are compared by the converting
+ * threads, the changes are written in order of the rows.
+ */
+public class ParallelListToRdf implements SharepointListHandler, AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /**
+     * Expected size of a row in the output, used to allocate buffers.
+     */
+    private static final int ROW_SIZE_ESTIMATE = 1024;
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    protected record Chunk(
+            byte[] content, long statements,
+            List<ListPatchWriter.ComparedRow> comparedRows) {
+    }
+
+    protected final OutputFormat format;
+
+    protected final String url;
+
+    protected final boolean identifyRows;
+
+    protected final OutputStream output;
+
+    protected final boolean compress;
+
+    protected final int chunkSize;
+
+    /**
+     * Optional, null when no patch is written.
+     */
+    protected final ListPatchWriter patchWriter;
+
+    /**
+     * Maximum number of chunks converted or waiting to be written,
+     * limits memory used by the buffers.
+     */
+    protected final int maxPending;
+
+    protected final ForkJoinPool pool;
+
+    protected final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+
+    protected List<Column> columns;
+
+    protected List<Row> rows;
+
+    protected long statementCount = 0;
+
+    public ParallelListToRdf(
+            OutputFormat format, String url, boolean identifyRows,
+            OutputStream output, boolean compress, int parallelism,
+            int chunkSize) {
+        this(format, url, identifyRows, output, compress, parallelism,
+                chunkSize, null);
+    }
+
+    public ParallelListToRdf(
+            OutputFormat format, String url, boolean identifyRows,
+            OutputStream output, boolean compress, int parallelism,
+            int chunkSize, ListPatchWriter patchWriter) {
+        if (!format.isLineBased()) {
+            throw new IllegalArgumentException(
+                    "Format " + format + " can not be written in parallel.");
+        }
+        this.format = format;
+        this.url = url;
+        this.identifyRows = identifyRows;
+        this.output = output;
+        this.compress = compress;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.patchWriter = patchWriter;
+        this.maxPending = Math.max(1, parallelism) * 2;
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.rows = new ArrayList<>(this.chunkSize);
+    }
+
+    @Override
+    public void onColumns(List<Column> columns) {
+        submitChunk();
+        this.columns = columns;
+    }
+
+    @Override
+    public void onRow(Row row) {
+        rows.add(row);
+        if (rows.size() >= chunkSize) {
+            submitChunk();
+        }
+    }
+
+    protected void submitChunk() {
+        if (rows.isEmpty()) {
+            return;
+        }
+        var chunkColumns = columns;
+        var chunkRows = rows;
+        rows = new ArrayList<>(chunkSize);
+        pending.add(pool.submit(() -> convert(chunkColumns, chunkRows)));
+        try {
+            // Write what is ready, wait only when there is too much pending.
+            while (!pending.isEmpty() && (pending.peek().isDone()
+                    || pending.size() > maxPending)) {
+                writeChunk(pending.poll());
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    protected Chunk convert(List<Column> columns, List<Row> rows)
+            throws IOException {
+        var buffer = new ByteArrayOutputStream(rows.size() * ROW_SIZE_ESTIMATE);
+        var counter = new AtomicLong();
+        var rowStatements = new ArrayList<Statement>();
+        var comparedRows = patchWriter == null ?
+                null : new ArrayList<ListPatchWriter.ComparedRow>(rows.size());
+        try (OutputStream stream = compress ?
+                new GZIPOutputStream(buffer, GZIP_BUFFER_SIZE) : buffer) {
+            var writer = format.createWriter(stream);
+            var collector = new StatementsBuilder(statement -> {
+                counter.incrementAndGet();
+                writer.handleStatement(statement);
+                if (comparedRows != null) {
+                    rowStatements.add(statement);
+                }
+            });
+            writer.startRDF();
+            var converter = new SharePointListToRdf(
+                    collector, url, identifyRows);
+            converter.onColumns(columns);
+            for (Row row : rows) {
+                rowStatements.clear();
+                converter.onRow(row);
+                if (comparedRows != null) {
+                    comparedRows.add(patchWriter.compare(
+                            row.identifier, rowStatements));
+                }
+            }
+            writer.endRDF();
+        }
+        return new Chunk(buffer.toByteArray(), counter.get(), comparedRows);
+    }
+
+    protected void writeChunk(Future<Chunk> future) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException cause) {
+                throw cause;
+            } else if (ex.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException("Conversion failed.", ex.getCause());
+        }
+        output.write(chunk.content);
+        statementCount += chunk.statements;
+        if (chunk.comparedRows != null) {
+            for (ListPatchWriter.ComparedRow row : chunk.comparedRows) {
+                patchWriter.onComparedRow(row);
+            }
+        }
+    }
+
+    /**
+     * Convert remaining rows and write all chunks to the output.
+     */
+    public void finish() throws IOException {
+        submitChunk();
+        while (!pending.isEmpty()) {
+            writeChunk(pending.poll());
+        }
+    }
+
+    public long getStatementCount() {
+        return statementCount;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+}
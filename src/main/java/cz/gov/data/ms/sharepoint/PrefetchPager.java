@@ -0,0 +1,297 @@
+package cz.gov.data.ms.sharepoint;
+
+import com.microsoft.graph.models.BaseCollectionPaginationCountResponse;
+import cz.gov.data.ms.metrics.Metrics;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Iterates over items of a paged Graph collection.
+ * While a page is being processed the following pages are requested
+ * in the background, at most {@link #lookahead} pages are kept ahead.
+ * The pager must be closed when the iteration ends prematurely.
+ * <p>
+ * Use {@link #create} or {@link #of} to create and start a pager.
+ */
+public class PrefetchPager<R, T> implements Iterable<T>, AutoCloseable {
+
+    public static final int DEFAULT_LOOKAHEAD = 2;
+
+    /**
+     * Marks the end of the page sequence in the queue.
+     */
+    private record End() {
+    }
+
+    /**
+     * Failure of the background fetch, rethrown to the consumer.
+     */
+    private record Failure(Throwable exception) {
+    }
+
+    protected final Function<R, List<T>> values;
+
+    protected final Function<R, String> nextLink;
+
+    protected final Function<String, R> next;
+
+    protected final int lookahead;
+
+    /**
+     * Fetched pages and the final marker. The number of pages is limited
+     * by {@link #permits}, so adding the marker never blocks.
+     */
+    protected final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * A permit is needed to fetch a page, it is returned once the page
+     * is taken from the queue.
+     */
+    protected final Semaphore permits;
+
+    protected Thread producer;
+
+    protected volatile boolean closed = false;
+
+    protected R response;
+
+    protected Iterator<T> page = Collections.emptyIterator();
+
+    protected boolean exhausted = false;
+
+    /**
+     * True when {@link #response} was not yet returned by {@link #pages()}.
+     */
+    protected boolean pending = false;
+
+    /**
+     * Create pager for a collection response with "@odata.nextLink".
+     */
+    public static <R extends BaseCollectionPaginationCountResponse, T>
+    PrefetchPager<R, T> of(
+            R first, Function<R, List<T>> values, Function<String, R> next) {
+        return create(first, values,
+                BaseCollectionPaginationCountResponse::getOdataNextLink,
+                next, DEFAULT_LOOKAHEAD);
+    }
+
+    /**
+     * Create pager and start fetching the following pages.
+     *
+     * @param first First page, must not be null.
+     * @param values Return content of a page.
+     * @param nextLink Return link to the next page or null.
+     * @param next Fetch a page for the given link.
+     * @param lookahead Maximum number of pages fetched ahead, at least one.
+     */
+    public static <R, T> PrefetchPager<R, T> create(
+            R first,
+            Function<R, List<T>> values,
+            Function<R, String> nextLink,
+            Function<String, R> next,
+            int lookahead) {
+        var result = new PrefetchPager<>(
+                first, values, nextLink, next, lookahead);
+        result.start();
+        return result;
+    }
+
+    protected PrefetchPager(
+            R first,
+            Function<R, List<T>> values,
+            Function<R, String> nextLink,
+            Function<String, R> next,
+            int lookahead) {
+        if (lookahead < 1) {
+            throw new IllegalArgumentException(
+                    "Lookahead must be at least one.");
+        }
+        this.values = values;
+        this.nextLink = nextLink;
+        this.next = next;
+        this.lookahead = lookahead;
+        this.permits = new Semaphore(lookahead);
+        this.response = first;
+    }
+
+    /**
+     * Read the first page and start fetching the following pages.
+     */
+    protected void start() {
+        List<T> content = values.apply(response);
+        countPage(content);
+        if (content == null) {
+            exhausted = true;
+        } else {
+            page = content.iterator();
+            pending = true;
+            startProducer(response);
+        }
+    }
+
+    protected static void countPage(List<?> content) {
+        var metrics = Metrics.getInstance();
+        metrics.counter("graph_pages_total",
+                "Number of pages of collections.").increment();
+        if (content != null) {
+            metrics.counter("graph_page_items_total",
+                    "Number of items in pages of collections.")
+                    .add(content.size());
+        }
+    }
+
+    protected void startProducer(R first) {
+        String link = nextLink.apply(first);
+        if (link == null) {
+            exhausted = true;
+            return;
+        }
+        producer = Thread.ofVirtual()
+                .name("prefetch-pager")
+                .start(() -> fetchPages(link));
+    }
+
+    protected void fetchPages(String firstLink) {
+        Object last = new End();
+        try {
+            String link = firstLink;
+            while (link != null && !closed) {
+                permits.acquire();
+                R nextResponse = next.apply(link);
+                if (nextResponse == null) {
+                    break;
+                }
+                queue.add(nextResponse);
+                link = nextLink.apply(nextResponse);
+            }
+        } catch (InterruptedException ex) {
+            // Closed by the consumer.
+            Thread.currentThread().interrupt();
+        } catch (Throwable ex) {
+            last = new Failure(ex);
+        } finally {
+            // The consumer must not be left waiting, whatever happened.
+            queue.add(last);
+        }
+    }
+
+    /**
+     * Response of the page that is currently being iterated. Once the
+     * iteration is over this is the last page.
+     */
+    public R lastResponse() {
+        return response;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<>() {
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext()) {
+                    if (!moveToNextPage()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+
+        };
+    }
+
+    /**
+     * Iterate over pages instead of their content, do not combine
+     * with {@link #iterator()}.
+     */
+    public Iterable<R> pages() {
+        return () -> new Iterator<>() {
+
+            @Override
+            public boolean hasNext() {
+                if (!pending) {
+                    pending = moveToNextPage();
+                }
+                return pending;
+            }
+
+            @Override
+            public R next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                pending = false;
+                return response;
+            }
+
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    protected boolean moveToNextPage() {
+        if (exhausted) {
+            return false;
+        }
+        Object item;
+        long start = System.nanoTime();
+        try {
+            item = queue.take();
+            // Time the consumer waits for the next page, when it is
+            // close to zero the prefetching keeps up.
+            Metrics.getInstance().histogram("graph_page_wait_seconds",
+                    "Time spent waiting for the next page.",
+                    Metrics.LATENCY_BUCKETS)
+                    .observe((System.nanoTime() - start) / 1e9);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while paging.", ex);
+        }
+        if (item instanceof End) {
+            exhausted = true;
+            return false;
+        } else if (item instanceof Failure failure) {
+            exhausted = true;
+            switch (failure.exception) {
+                case RuntimeException ex -> throw ex;
+                case Error ex -> throw ex;
+                default -> throw new IllegalStateException(
+                        "Can't fetch page.", failure.exception);
+            }
+        }
+        permits.release();
+        response = (R) item;
+        List<T> content = values.apply(response);
+        countPage(content);
+        if (content == null) {
+            exhausted = true;
+            return false;
+        }
+        page = content.iterator();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (producer != null) {
+            producer.interrupt();
+        }
+        queue.clear();
+    }
+
+}
@@ -0,0 +1,41 @@
+package cz.gov.data.ms.sharepoint;
+
+import com.microsoft.graph.models.ListItemCollectionResponse;
+import com.microsoft.graph.sites.item.lists.item.ListItemRequestBuilder;
+
+import java.util.List;
+
+/**
+ * List with columns and the first page of items already downloaded,
+ * see {@link Sharepoint#prefetchLists}.
+ */
+public class PrefetchedList {
+
+    public final String listIdentifier;
+
+    public final List<Column> columns;
+
+    protected final ListItemRequestBuilder listRequestBuilder;
+
+    /**
+     * Can be null when there are no items.
+     */
+    protected final ListItemCollectionResponse firstPage;
+
+    /**
+     * Failure of the prefetch, null when it succeeded.
+     */
+    protected final RuntimeException error;
+
+    protected PrefetchedList(
+            String listIdentifier, List<Column> columns,
+            ListItemRequestBuilder listRequestBuilder,
+            ListItemCollectionResponse firstPage, RuntimeException error) {
+        this.listIdentifier = listIdentifier;
+        this.columns = columns;
+        this.listRequestBuilder = listRequestBuilder;
+        this.firstPage = firstPage;
+        this.error = error;
+    }
+
+}
@@ -0,0 +1,130 @@
+package cz.gov.data.ms.sharepoint;
+
+import java.util.Base64;
+
+/**
+ * Hash used by OneDrive and SharePoint for all files.
+ * <p>
+ * Every byte is XORed into a 160-bit register at position given only by
+ * its offset in the file. So parts of a file can be hashed independently,
+ * when we know where they start, and combined using {@link #combine}.
+ */
+// https://learn.microsoft.com/en-us/onedrive/developer/code-snippets/quickxorhash
+public class QuickXorHash {
+
+    private static final int SHIFT = 11;
+
+    private static final int WIDTH_IN_BITS = 160;
+
+    private static final int BITS_IN_LAST_CELL = 32;
+
+    private static final int CELLS = (WIDTH_IN_BITS - 1) / 64 + 1;
+
+    protected final long[] data;
+
+    protected int shiftSoFar;
+
+    protected long lengthSoFar = 0;
+
+    public QuickXorHash() {
+        this(0);
+    }
+
+    /**
+     * @param offset Position of the first hashed byte in the file.
+     */
+    public QuickXorHash(long offset) {
+        this(new long[CELLS], offset);
+    }
+
+    protected QuickXorHash(long[] data, long offset) {
+        this.data = data;
+        this.shiftSoFar = (int) ((SHIFT * (offset % WIDTH_IN_BITS))
+                % WIDTH_IN_BITS);
+    }
+
+    /**
+     * Restore state saved using {@link #state()}.
+     */
+    public static QuickXorHash fromState(long[] state) {
+        if (state.length != CELLS) {
+            throw new IllegalArgumentException("Invalid state.");
+        }
+        return new QuickXorHash(state.clone(), 0);
+    }
+
+    public void update(byte[] array, int start, int length) {
+        int vectorArrayIndex = shiftSoFar / 64;
+        int vectorOffset = shiftSoFar % 64;
+        int iterations = Math.min(length, WIDTH_IN_BITS);
+        for (int i = 0; i < iterations; ++i) {
+            boolean isLastCell = vectorArrayIndex == CELLS - 1;
+            int bitsInVectorCell = isLastCell ? BITS_IN_LAST_CELL : 64;
+            // Bytes 160 apart end up at the same position.
+            long xored = 0;
+            for (int j = start + i; j < start + length; j += WIDTH_IN_BITS) {
+                xored ^= array[j] & 0xFF;
+            }
+            if (vectorOffset <= bitsInVectorCell - 8) {
+                data[vectorArrayIndex] ^= xored << vectorOffset;
+            } else {
+                int nextIndex = isLastCell ? 0 : vectorArrayIndex + 1;
+                int low = bitsInVectorCell - vectorOffset;
+                data[vectorArrayIndex] ^= xored << vectorOffset;
+                data[nextIndex] ^= xored >>> low;
+            }
+            vectorOffset += SHIFT;
+            while (vectorOffset >= bitsInVectorCell) {
+                vectorArrayIndex = isLastCell ? 0 : vectorArrayIndex + 1;
+                vectorOffset -= bitsInVectorCell;
+            }
+        }
+        shiftSoFar = (int) ((shiftSoFar
+                + (long) SHIFT * (length % WIDTH_IN_BITS)) % WIDTH_IN_BITS);
+        lengthSoFar += length;
+    }
+
+    /**
+     * Add content hashed by the other instance.
+     */
+    public void combine(QuickXorHash other) {
+        for (int index = 0; index < CELLS; ++index) {
+            data[index] ^= other.data[index];
+        }
+    }
+
+    /**
+     * State that can be stored and restored, does not include length.
+     */
+    public long[] state() {
+        return data.clone();
+    }
+
+    /**
+     * Return hash of content with given total length, as used by Graph.
+     */
+    public String digest(long totalLength) {
+        byte[] result = new byte[(WIDTH_IN_BITS - 1) / 8 + 1];
+        for (int index = 0; index < CELLS; ++index) {
+            long value = data[index];
+            int bytes = Math.min(8, result.length - index * 8);
+            for (int offset = 0; offset < bytes; ++offset) {
+                result[index * 8 + offset] = (byte) (value >>> (8 * offset));
+            }
+        }
+        // Length is XORed into the last 8 bytes, little-endian.
+        for (int offset = 0; offset < 8; ++offset) {
+            result[result.length - 8 + offset] ^=
+                    (byte) (totalLength >>> (8 * offset));
+        }
+        return Base64.getEncoder().encodeToString(result);
+    }
+
+    /**
+     * Hash of content hashed by this instance only.
+     */
+    public String digest() {
+        return digest(lengthSoFar);
+    }
+
+}
@@ -0,0 +1,385 @@
+package cz.gov.data.ms.sharepoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Downloads a file in ranges requested in parallel. Ranges are written
+ * into a preallocated temporary file, finished ranges are recorded in
+ * a progress file so an interrupted download can be resumed.
+ * <p>
+ * Every range is hashed with {@link QuickXorHash} as it is written,
+ * range hashes are kept in the progress file and combined at the end.
+ * <p>
+ * Ranges are requested with "If-Match" for the eTag of the item, which
+ * is also stored in the progress file, so ranges of different versions
+ * of the file are never mixed.
+ */
+class RangedDownload {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RangedDownload.class);
+
+    private static final int PROGRESS_MAGIC = 0x4D535250;
+
+    private static final int PROGRESS_VERSION = 3;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Download URLs are pre-authenticated, we do not need the Graph client.
+     */
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
+    /**
+     * The file changed since the download started, the progress was
+     * discarded and the download must start over.
+     */
+    static class ChangedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChangedException(String message) {
+            super(message);
+        }
+
+    }
+
+    protected final SharepointFile file;
+
+    protected final long size;
+
+    protected final int rangeSize;
+
+    protected final int parallelism;
+
+    /**
+     * Version of the item we download, null when not known.
+     */
+    protected final String eTag;
+
+    /**
+     * Returns a fresh download URL, the URL is valid only for a short time.
+     */
+    protected final Supplier<String> urlSupplier;
+
+    protected final Path destination;
+
+    protected final Path partPath;
+
+    protected final Path progressPath;
+
+    protected volatile String url;
+
+    protected BitSet completed;
+
+    /**
+     * State of {@link QuickXorHash} for every completed range.
+     */
+    protected long[][] rangeHashes;
+
+    RangedDownload(
+            SharepointFile file, long size,
+            Sharepoint.FileConfiguration configuration, String eTag, Supplier<String> urlSupplier, Path destination) {
+        this.file = file;
+        this.size = size;
+        this.rangeSize = configuration.rangeSize;
+        this.parallelism = Math.max(1, configuration.rangeParallelism);
+        this.eTag = eTag;
+        this.urlSupplier = urlSupplier;
+        this.destination = destination;
+        this.partPath = partPath(destination);
+        this.progressPath = destination.resolveSibling(
+                destination.getFileName() + ".progress");
+    }
+
+    static Path partPath(Path destination) {
+        return destination.resolveSibling(
+                destination.getFileName() + ".part");
+    }
+
+    /**
+     * Download content into the part file and return its quickXorHash.
+     */
+    public String execute() throws IOException {
+        int rangeCount = (int) ((size + rangeSize - 1) / rangeSize);
+        rangeHashes = new long[rangeCount][];
+        completed = loadProgress(rangeCount);
+        if (completed == null || !Files.exists(partPath)) {
+            completed = new BitSet(rangeCount);
+            rangeHashes = new long[rangeCount][];
+            try (var output = new RandomAccessFile(partPath.toFile(), "rw")) {
+                output.setLength(size);
+            }
+            saveProgress();
+        } else {
+            LOG.info("Resuming download of '{}', {} of {} ranges done.",
+                    file.fileName, completed.cardinality(), rangeCount);
+        }
+        url = urlSupplier.get();
+        try (var channel = FileChannel.open(
+                partPath, StandardOpenOption.WRITE)) {
+            downloadRanges(channel, rangeCount);
+            channel.force(false);
+        } catch (ChangedException ex) {
+            Files.deleteIfExists(progressPath);
+            Files.deleteIfExists(partPath);
+            throw ex;
+        }
+        String result = computeHash();
+        Files.deleteIfExists(progressPath);
+        return result;
+    }
+
+    protected String computeHash() {
+        var result = new QuickXorHash();
+        for (long[] state : rangeHashes) {
+            result.combine(QuickXorHash.fromState(state));
+        }
+        return result.digest(size);
+    }
+
+    protected void downloadRanges(FileChannel channel, int rangeCount)
+            throws IOException {
+        var permits = new Semaphore(parallelism);
+        var futures = new ArrayList<Future<?>>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int index = 0; index < rangeCount; ++index) {
+                if (isCompleted(index)) {
+                    continue;
+                }
+                int range = index;
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        downloadRange(channel, range);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+        }
+        collectFailures(futures);
+    }
+
+    protected void collectFailures(List<Future<?>> futures)
+            throws IOException {
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted.", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof ChangedException changed) {
+                    // There is nothing to resume.
+                    throw changed;
+                }
+                if (failure == null) {
+                    failure = new IOException(
+                            "Can't download ranges of '" + file.fileName
+                                    + "', download can be resumed.",
+                            ex.getCause());
+                } else {
+                    failure.addSuppressed(ex.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    protected void downloadRange(FileChannel channel, int range)
+            throws IOException, InterruptedException {
+        long start = (long) range * rangeSize;
+        long end = Math.min(start + rangeSize, size) - 1;
+        for (int attempt = 1; ; ++attempt) {
+            try {
+                var hash = new QuickXorHash(start);
+                downloadRange(channel, start, end, hash);
+                markCompleted(range, hash.state());
+                return;
+            } catch (ChangedException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw ex;
+                }
+                LOG.debug("Failed to download range {} of '{}', retrying.",
+                        range, file.fileName, ex);
+            }
+        }
+    }
+
+    protected void downloadRange(
+            FileChannel channel, long start, long end, QuickXorHash hash)
+            throws IOException, InterruptedException {
+        var builder = HttpRequest.newBuilder(URI.create(url))
+                .header("Range", "bytes=" + start + "-" + end)
+                .GET();
+        if (eTag != null) {
+            builder.header("If-Match", eTag);
+        }
+        var request = builder.build();
+        var response = HTTP_CLIENT.send(
+                request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            int status = response.statusCode();
+            if (status == 401 || status == 403) {
+                // Download URL expired.
+                url = urlSupplier.get();
+                throw new IOException("Download URL rejected: " + status);
+            }
+            if (status == 412) {
+                throw new ChangedException(
+                        "File '" + file.fileName + "' changed.");
+            }
+            if (status != 206) {
+                throw new IOException(
+                        "Unexpected response to range request: " + status);
+            }
+            String contentRange = response.headers()
+                    .firstValue("Content-Range").orElse("");
+            if (!contentRange.startsWith("bytes " + start + "-")) {
+                throw new IOException(
+                        "Unexpected content range: " + contentRange);
+            }
+            writeAt(channel, body, start, end - start + 1, hash);
+        }
+    }
+
+    protected static void writeAt(
+            FileChannel channel, InputStream input, long position,
+            long length, QuickXorHash hash) throws IOException {
+        var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long written = 0;
+        while (written < length) {
+            int read = input.read(buffer.array(), 0,
+                    (int) Math.min(buffer.capacity(), length - written));
+            if (read < 0) {
+                throw new IOException("Unexpected end of range.");
+            }
+            hash.update(buffer.array(), 0, read);
+            buffer.limit(read).position(0);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer, position + written);
+            }
+            buffer.clear();
+        }
+    }
+
+    protected synchronized boolean isCompleted(int range) {
+        return completed.get(range);
+    }
+
+    protected synchronized void markCompleted(int range, long[] hash)
+            throws IOException {
+        completed.set(range);
+        rangeHashes[range] = hash;
+        saveProgress();
+    }
+
+    /**
+     * Return null when there is no progress for this file.
+     */
+    protected BitSet loadProgress(int rangeCount) {
+        if (!Files.exists(progressPath)) {
+            return null;
+        }
+        try (var input = new DataInputStream(
+                Files.newInputStream(progressPath))) {
+            if (input.readInt() != PROGRESS_MAGIC
+                    || input.readInt() != PROGRESS_VERSION
+                    || !input.readUTF().equals(file.fileIdentifier)
+                    || input.readLong() != size
+                    || input.readInt() != rangeSize) {
+                return null;
+            }
+            if (!input.readUTF().equals(eTag == null ? "" : eTag)) {
+                LOG.info("File '{}' changed, discarding download progress.",
+                        file.fileName);
+                return null;
+            }
+            byte[] content = new byte[input.readInt()];
+            input.readFully(content);
+            var result = BitSet.valueOf(content);
+            if (result.length() > rangeCount) {
+                return null;
+            }
+            for (int range = result.nextSetBit(0); range >= 0;
+                 range = result.nextSetBit(range + 1)) {
+                long[] hash = new long[input.readInt()];
+                for (int index = 0; index < hash.length; ++index) {
+                    hash[index] = input.readLong();
+                }
+                rangeHashes[range] = hash;
+            }
+            return result;
+        } catch (IOException ex) {
+            LOG.info("Ignoring download progress '{}'.", progressPath, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Called under lock.
+     */
+    protected void saveProgress() throws IOException {
+        Path workingPath = progressPath.resolveSibling(
+                progressPath.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(
+                Files.newOutputStream(workingPath))) {
+            output.writeInt(PROGRESS_MAGIC);
+            output.writeInt(PROGRESS_VERSION);
+            output.writeUTF(file.fileIdentifier);
+            output.writeLong(size);
+            output.writeInt(rangeSize);
+            output.writeUTF(eTag == null ? "" : eTag);
+            byte[] content = completed.toByteArray();
+            output.writeInt(content.length);
+            output.write(content);
+            for (int range = completed.nextSetBit(0); range >= 0;
+                 range = completed.nextSetBit(range + 1)) {
+                long[] hash = rangeHashes[range];
+                output.writeInt(hash.length);
+                for (long value : hash) {
+                    output.writeLong(value);
+                }
+            }
+        }
+        Files.move(workingPath, progressPath,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
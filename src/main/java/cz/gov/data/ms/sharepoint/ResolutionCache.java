@@ -0,0 +1,141 @@
+package cz.gov.data.ms.sharepoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers identifiers of drives and directories resolved from names,
+ * so we do not need to resolve them on every run.
+ * <p>
+ * Stored as a text file, each line holds key, value and expiration time
+ * separated by a tab. Entries are removed once they expire or when the
+ * identifier is reported as not found.
+ */
+public class ResolutionCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResolutionCache.class);
+
+    public static final Duration DEFAULT_TTL = Duration.ofHours(24);
+
+    protected record Entry(String value, long expiresAt) {
+    }
+
+    /**
+     * Null for in-memory only cache.
+     */
+    protected final Path path;
+
+    protected final Duration ttl;
+
+    protected final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    protected ResolutionCache(Path path, Duration ttl) {
+        this.path = path;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Cache that lives only for the duration of the process.
+     */
+    public static ResolutionCache inMemory() {
+        return new ResolutionCache(null, DEFAULT_TTL);
+    }
+
+    /**
+     * Load cache from the file, missing or broken file results in an empty
+     * cache.
+     */
+    public static ResolutionCache load(Path path, Duration ttl) {
+        var result = new ResolutionCache(path, ttl);
+        if (!Files.exists(path)) {
+            return result;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            for (String line : Files.readAllLines(
+                    path, StandardCharsets.UTF_8)) {
+                String[] tokens = line.split("\t");
+                if (tokens.length != 3) {
+                    continue;
+                }
+                long expiresAt = Long.parseLong(tokens[2]);
+                if (expiresAt > now) {
+                    result.entries.put(
+                            tokens[0], new Entry(tokens[1], expiresAt));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            LOG.warn("Can't read resolution cache '{}'.", path, ex);
+            result.entries.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Return null when there is no valid entry.
+     */
+    public String get(String key) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public void put(String key, String value) {
+        entries.put(key, new Entry(
+                value, System.currentTimeMillis() + ttl.toMillis()));
+        save();
+    }
+
+    /**
+     * Remove all entries with values containing the identifier.
+     */
+    public void invalidate(String identifier) {
+        if (entries.values().removeIf(
+                entry -> entry.value.contains(identifier))) {
+            LOG.info("Removed '{}' from resolution cache.", identifier);
+            save();
+        }
+    }
+
+    protected synchronized void save() {
+        if (path == null) {
+            return;
+        }
+        var lines = new ArrayList<String>();
+        for (var item : entries.entrySet()) {
+            lines.add(item.getKey() + "\t" + item.getValue().value
+                    + "\t" + item.getValue().expiresAt);
+        }
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Path workingPath = path.resolveSibling(
+                    path.getFileName() + ".tmp");
+            Files.write(workingPath, lines, StandardCharsets.UTF_8);
+            Files.move(workingPath, path,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // Cache is an optimization, we can continue without it.
+            LOG.warn("Can't save resolution cache '{}'.", path, ex);
+        }
+    }
+
+}
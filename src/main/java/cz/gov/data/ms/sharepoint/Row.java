@@ -5,9 +5,19 @@ import java.util.List;
 
 public class Row {
 
+    /**
+     * Identifier of the list item, null when not known.
+     */
+    public final String identifier;
+
     public final List<Cell> cells;
 
     public Row(List<Cell> cells) {
+        this(null, cells);
+    }
+
+    public Row(String identifier, List<Cell> cells) {
+        this.identifier = identifier;
         this.cells = Collections.unmodifiableList(cells);
     }
 
@@ -0,0 +1,87 @@
+package cz.gov.data.ms.sharepoint;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Identifier and content hash of every row written to the output, used
+ * to find rows changed since the last run.
+ * <p>
+ * Stored as a text file, each line holds item identifier, row IRI and
+ * content hash separated by a tab.
+ */
+public class RowIndex {
+
+    public record Entry(String identifier, String iri, String hash) {
+    }
+
+    protected final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    public static RowIndex empty() {
+        return new RowIndex();
+    }
+
+    public static RowIndex load(Path path) throws IOException {
+        var result = new RowIndex();
+        if (!Files.exists(path)) {
+            return result;
+        }
+        try (var reader = Files.newBufferedReader(
+                path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                if (tokens.length != 3) {
+                    throw new IOException("Invalid row index line '"
+                            + line + "' in '" + path + "'.");
+                }
+                result.put(new Entry(tokens[0], tokens[1], tokens[2]));
+            }
+        }
+        return result;
+    }
+
+    public Entry get(String identifier) {
+        return entries.get(identifier);
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.identifier, entry);
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write into a temporary file and replace the original one.
+     */
+    public void save(Path path) throws IOException {
+        Path workingPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var writer = Files.newBufferedWriter(
+                workingPath, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.identifier);
+                writer.write('\t');
+                writer.write(entry.iri);
+                writer.write('\t');
+                writer.write(entry.hash);
+                writer.write('\n');
+            }
+        }
+        Files.move(workingPath, path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -6,16 +6,25 @@ import cz.gov.data.csvw.CellValue;
 import cz.gov.data.csvw.CsvwToRdf;
 import cz.gov.data.csvw.TableAnnotation;
 import cz.gov.data.rdf.StatementsBuilder;
+import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
 
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
-public class SharePointListToRdf {
+public class SharePointListToRdf implements SharepointListHandler {
 
     public static class ValueHolder implements CellValue {
 
@@ -55,49 +64,217 @@ public class SharePointListToRdf {
 
     }
 
+    /**
+     * Converts a cell value to RDF values.
+     */
+    @FunctionalInterface
+    protected interface ValueConverter {
+
+        void convert(Object value, Collection<Value> values);
+
+    }
+
+    /**
+     * Everything needed to convert cells of a column, prepared once for
+     * the table so converting a cell does not need any lookups.
+     */
+    protected record ColumnPlan(
+            CellAnnotation annotation, IRI predicate,
+            ValueConverter converter) {
+    }
+
     protected final ValueFactory valueFactory = SimpleValueFactory.getInstance();
 
-    protected StatementsBuilder collector;
+    protected final StatementsBuilder collector;
+
+    protected final String url;
+
+    /**
+     * When true, rows are identified by skolem IRIs derived from item
+     * identifiers instead of blank nodes.
+     */
+    protected final boolean identifyRows;
+
+    /**
+     * Prefix of skolem IRIs for rows.
+     */
+    protected final String rowPrefix;
+
+    protected CsvwToRdf adapter;
+
+    // To not recreate every time we keep the values here.
+    protected final List<Value> cellValues = new ArrayList<>();
+
+    /**
+     * Plan for each column, cells refer to the same column instances.
+     */
+    protected final Map<Column, ColumnPlan> plans = new IdentityHashMap<>();
 
     public static List<Statement> toRdf(SharepointList list, String url) {
         int expectedSize = (list.columns.size() + 3) * list.rows.size();
         var result = new ArrayList<Statement>(expectedSize);
         var collector = new StatementsBuilder(result);
-        (new SharePointListToRdf(collector)).listToRdf(list, url);
+        (new SharePointListToRdf(collector, url)).listToRdf(list);
         return result;
     }
 
-    public SharePointListToRdf(StatementsBuilder collector) {
+    public SharePointListToRdf(StatementsBuilder collector, String url) {
+        this(collector, url, false);
+    }
+
+    public SharePointListToRdf(
+            StatementsBuilder collector, String url, boolean identifyRows) {
         this.collector = collector;
+        this.url = url;
+        this.identifyRows = identifyRows;
+        this.rowPrefix = skolemPrefix(url);
     }
 
-    protected void listToRdf(SharepointList list, String url) {
-        var adapter = CsvwToRdf.minimalMode(collector);
+    protected void listToRdf(SharepointList list) {
+        onColumns(list.columns);
+        for (Row row : list.rows) {
+            onRow(row);
+        }
+    }
+
+    @Override
+    public void onColumns(List<Column> columns) {
+        adapter = CsvwToRdf.minimalMode(collector);
         var annotation = TableAnnotation.empty();
         annotation.url = url;
         adapter.onTable(null, annotation);
-        // To not recreate every time we keep the values here.
-        var cellValues = new ArrayList<Value>();
+        plans.clear();
+        for (Column column : columns) {
+            plans.put(column, createPlan(column));
+        }
+    }
+
+    protected ColumnPlan createPlan(Column column) {
         var cellAnnotation = CellAnnotation.empty();
-        //
-        for (Row row : list.rows) {
-            adapter.onRow(null);
-            for (Cell cell : row.cells) {
-                // Prepare metadata
-                cellAnnotation.name = cell.column.name;
-                // Prepare value
-                cellValues.clear();
-                prepareCellValue(cell, cellValues);
-                adapter.onCell(cellAnnotation, cellValues);
+        cellAnnotation.name = column.name;
+        return new ColumnPlan(
+                cellAnnotation, adapter.predicate(cellAnnotation),
+                createConverter(column.type));
+    }
+
+    /**
+     * Select converter producing typed literals for the column type,
+     * values of unexpected types are converted as generic values.
+     */
+    protected ValueConverter createConverter(ColumnType type) {
+        return switch (type) {
+            case Number -> (value, values) -> {
+                if (value instanceof Double typed) {
+                    values.add(createNumber(typed));
+                } else {
+                    convertGeneric(value, values);
+                }
+            };
+            case DataTime -> (value, values) -> {
+                if (value instanceof String typed) {
+                    values.add(valueFactory.createLiteral(
+                            typed, XSD.DATETIME));
+                } else {
+                    convertGeneric(value, values);
+                }
+            };
+            case Boolean -> (value, values) -> {
+                if (value instanceof Boolean typed) {
+                    values.add(valueFactory.createLiteral(typed));
+                } else {
+                    convertGeneric(value, values);
+                }
+            };
+            case Choice, String -> (value, values) -> {
+                if (value instanceof String typed) {
+                    values.add(valueFactory.createLiteral(typed));
+                } else {
+                    convertGeneric(value, values);
+                }
+            };
+            default -> this::convertGeneric;
+        };
+    }
+
+    /**
+     * JSON numbers are parsed as double, we use decimal for finite values
+     * so integers are not written with an exponent.
+     */
+    protected Value createNumber(double value) {
+        if (Double.isFinite(value)) {
+            return valueFactory.createLiteral(BigDecimal.valueOf(value));
+        }
+        return valueFactory.createLiteral(value);
+    }
+
+    /**
+     * Skolem IRIs use the "/.well-known/genid/" path of the URL authority,
+     * see <a href="https://www.w3.org/TR/rdf11-concepts/#section-skolemization">
+     * RDF 1.1 skolemization</a>. Without an authority we use "urn:uuid:".
+     */
+    protected static String skolemPrefix(String url) {
+        if (url == null) {
+            return "urn:uuid:";
+        }
+        try {
+            var uri = new URI(url);
+            if (uri.getScheme() != null && uri.getRawAuthority() != null) {
+                return uri.getScheme() + "://" + uri.getRawAuthority()
+                        + "/.well-known/genid/";
             }
+        } catch (URISyntaxException ex) {
+            // Use the fallback.
+        }
+        return "urn:uuid:";
+    }
+
+    /**
+     * Row identifier is a name based UUID of the table URL and the item
+     * identifier, so it is the same in every conversion of the list.
+     */
+    public IRI createRowIri(String identifier) {
+        return valueFactory.createIRI(rowIri(rowPrefix, url, identifier));
+    }
+
+    /**
+     * Same as {@link #createRowIri(String)}, without a converter.
+     */
+    public static String rowIri(String url, String identifier) {
+        return rowIri(skolemPrefix(url), url, identifier);
+    }
+
+    protected static String rowIri(
+            String prefix, String url, String identifier) {
+        var name = url + "\n" + identifier;
+        var uuid = UUID.nameUUIDFromBytes(
+                name.getBytes(StandardCharsets.UTF_8));
+        return prefix + uuid;
+    }
+
+    @Override
+    public void onRow(Row row) {
+        if (identifyRows && row.identifier != null) {
+            adapter.onRow(null, createRowIri(row.identifier));
+        } else {
+            adapter.onRow(null);
+        }
+        for (Cell cell : row.cells) {
+            // Columns not reported in onColumns get a plan when first used.
+            var plan = plans.computeIfAbsent(cell.column, this::createPlan);
+            cellValues.clear();
+            plan.converter.convert(cell.value, cellValues);
+            adapter.onCell(plan.annotation, plan.predicate, cellValues);
         }
     }
 
-    protected void prepareCellValue(Cell cell, Collection<Value> values) {
+    /**
+     * Convert value of any supported type.
+     */
+    protected void convertGeneric(Object value, Collection<Value> values) {
         // Try to process as a primitive value.
-        if (processPrimitiveValue(cell.value, values)) {
+        if (processPrimitiveValue(value, values)) {
             return;
-        } else if (cell.value instanceof UntypedArray typed) {
+        } else if (value instanceof UntypedArray typed) {
             Iterable<UntypedNode> items = typed.getValue();
             for (UntypedNode item : items) {
                 if (processPrimitiveValue(item, values)) {
@@ -107,7 +284,7 @@ public class SharePointListToRdf {
             }
             return;
         }
-        throw new UnsupportedOperationException("Unknown type :'" + cell.value.getClass().getName() + "'.");
+        throw new UnsupportedOperationException("Unknown type :'" + value.getClass().getName() + "'.");
     }
 
     protected boolean processPrimitiveValue(Object value, Collection<Value> values) {
@@ -121,6 +298,9 @@ public class SharePointListToRdf {
             case Boolean typed -> {
                 values.add(valueFactory.createLiteral(typed));
             }
+            case Double typed -> {
+                values.add(createNumber(typed));
+            }
             case UntypedString typed -> {
                 values.add(valueFactory.createLiteral(typed.getValue()));
             }
@@ -130,9 +310,18 @@ public class SharePointListToRdf {
             case UntypedInteger typed -> {
                 values.add(valueFactory.createLiteral(typed.getValue()));
             }
+            case UntypedLong typed -> {
+                values.add(valueFactory.createLiteral(typed.getValue()));
+            }
+            case UntypedFloat typed -> {
+                values.add(valueFactory.createLiteral(typed.getValue()));
+            }
             case UntypedDouble typed -> {
                 values.add(valueFactory.createLiteral(typed.getValue()));
             }
+            case UntypedDecimal typed -> {
+                values.add(valueFactory.createLiteral(typed.getValue()));
+            }
             case UntypedNull untypedNull -> {
                 // Do nothing.
             }
@@ -1,77 +1,392 @@
 package cz.gov.data.ms.sharepoint;
 
 import com.microsoft.graph.models.ColumnDefinition;
+import com.microsoft.graph.models.ColumnDefinitionCollectionResponse;
 import com.microsoft.graph.models.Drive;
+import com.microsoft.graph.models.DriveCollectionResponse;
 import com.microsoft.graph.models.DriveItem;
+import com.microsoft.graph.models.DriveItemCollectionResponse;
 import com.microsoft.graph.models.ListItem;
+import com.microsoft.graph.models.ListItemCollectionResponse;
+import com.microsoft.graph.models.odataerrors.ODataError;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
 import com.microsoft.graph.sites.item.lists.item.ListItemRequestBuilder;
 import com.microsoft.graph.sites.item.lists.item.items.ItemsRequestBuilder;
+import com.microsoft.graph.sites.item.lists.item.items.delta.DeltaGetResponse;
+import com.microsoft.graph.sites.item.lists.item.items.delta.DeltaRequestBuilder;
+import com.microsoft.kiota.ApiException;
+import com.microsoft.kiota.RequestInformation;
+import com.microsoft.kiota.serialization.Parsable;
+import com.microsoft.kiota.serialization.ParsableFactory;
+import cz.gov.data.ms.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
 
 public class Sharepoint {
 
     private static final Logger LOG = LoggerFactory.getLogger(Sharepoint.class);
 
+    /**
+     * Controls what is downloaded for a list.
+     */
+    public static class ListConfiguration {
+
+        /**
+         * Names of columns to download, null to download all columns.
+         */
+        public Set<String> columns = null;
+
+        /**
+         * When true, hidden and read-only columns are ignored.
+         */
+        public boolean skipSystemColumns = false;
+
+        /**
+         * Number of items in a page, null to use server default.
+         */
+        public Integer pageSize = null;
+
+        /**
+         * When true, pages of items are decoded directly into rows
+         * using {@link ListItemPageReader} instead of the Graph SDK.
+         * Does not apply to changes of incremental download.
+         */
+        public boolean streamItems = false;
+
+    }
+
+    /**
+     * Controls how files are downloaded.
+     */
+    public static class FileConfiguration {
+
+        /**
+         * Files of this size or larger are downloaded in ranges.
+         */
+        public long rangeThreshold = 64L * 1024 * 1024;
+
+        public int rangeSize = 16 * 1024 * 1024;
+
+        /**
+         * Number of ranges of a file downloaded at the same time.
+         */
+        public int rangeParallelism = 4;
+
+    }
+
+    /**
+     * Number of attempts to download a file with hash mismatch.
+     */
+    protected static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+
+    protected static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
     protected GraphServiceClient graphServiceClient;
 
+    protected final ListConfiguration listConfiguration;
+
+    protected final ResolutionCache resolutionCache;
+
     public Sharepoint(GraphServiceClient graphServiceClient) {
+        this(graphServiceClient, new ListConfiguration());
+    }
+
+    public Sharepoint(
+            GraphServiceClient graphServiceClient,
+            ListConfiguration listConfiguration) {
+        this(graphServiceClient, listConfiguration, ResolutionCache.inMemory());
+    }
+
+    public Sharepoint(
+            GraphServiceClient graphServiceClient,
+            ListConfiguration listConfiguration,
+            ResolutionCache resolutionCache) {
         this.graphServiceClient = graphServiceClient;
+        this.listConfiguration = listConfiguration;
+        this.resolutionCache = resolutionCache;
     }
 
     public SharepointList downloadList(
             String siteIdentifier, String listIdentifier) {
+        var builder = new SharepointList.Builder();
+        downloadList(siteIdentifier, listIdentifier, builder);
+        return builder.build();
+    }
+
+    /**
+     * Stream content of the list into the handler. Rows are passed to the
+     * handler as soon as their page is downloaded, so no more than a single
+     * page is kept in memory.
+     */
+    public void downloadList(
+            String siteIdentifier, String listIdentifier,
+            SharepointListHandler handler) {
+        downloadList(graphServiceClient
+                .sites().bySiteId(siteIdentifier)
+                .lists().byListId(listIdentifier), handler);
+    }
+
+    protected void downloadList(
+            ListItemRequestBuilder listRequestBuilder,
+            SharepointListHandler handler) {
+        var columns = downloadColumns(listRequestBuilder);
+        handler.onColumns(columns);
+        loadRows(listRequestBuilder, columns, handler);
+    }
+
+    /**
+     * Update the snapshot with changes since the last run and stream
+     * the updated list into the handler. When the snapshot is empty all
+     * items are downloaded. Only items are cached, columns are always
+     * downloaded. When the columns changed, all items are downloaded.
+     */
+    public void downloadListChanges(
+            String siteIdentifier, String listIdentifier,
+            ListSnapshot snapshot, SharepointListHandler handler) {
         var listRequestBuilder = graphServiceClient
                 .sites().bySiteId(siteIdentifier)
                 .lists().byListId(listIdentifier);
         var columns = downloadColumns(listRequestBuilder);
-        var rows = loadRows(listRequestBuilder, columns);
-        return new SharepointList(columns, rows);
+        if (!snapshot.isEmpty() && !snapshot.hasColumns(columns)) {
+            // The delta link asks only for fields of the stored columns.
+            LOG.info("Columns changed, downloading all items.");
+            snapshot.clear();
+        }
+        snapshot.setColumns(columns);
+        applyChanges(listRequestBuilder, columns, snapshot);
+        handler.onColumns(columns);
+        try {
+            snapshot.replay(handler);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // https://learn.microsoft.com/en-us/graph/api/listitem-delta?view=graph-rest-1.0
+    protected void applyChanges(
+            ListItemRequestBuilder listRequestBuilder, List<Column> columns,
+            ListSnapshot snapshot) {
+        var deltaBuilder = listRequestBuilder.items().delta();
+        DeltaGetResponse response;
+        if (snapshot.isEmpty()) {
+            response = deltaBuilder.get(
+                    config -> prepareDeltaRequestConfig(columns, config));
+        } else {
+            try {
+                response = deltaBuilder.withUrl(snapshot.deltaLink).get();
+            } catch (ApiException ex) {
+                if (ex.getResponseStatusCode() != 410) {
+                    throw ex;
+                }
+                // The delta link is no longer valid, we need to start over.
+                LOG.warn("Delta link expired, downloading all items.");
+                snapshot.clear();
+                applyChanges(listRequestBuilder, columns, snapshot);
+                return;
+            }
+        }
+        if (response == null) {
+            throw new IllegalStateException("Missing response for delta.");
+        }
+        int changed = 0;
+        int deleted = 0;
+        try (var pager = PrefetchPager.create(response,
+                DeltaGetResponse::getValue,
+                DeltaGetResponse::getOdataNextLink,
+                next -> deltaBuilder.withUrl(next).get(),
+                PrefetchPager.DEFAULT_LOOKAHEAD)) {
+            for (ListItem item : pager) {
+                if (item.getDeleted() == null) {
+                    snapshot.update(createRow(columns, item));
+                    ++changed;
+                } else {
+                    snapshot.remove(item.getId());
+                    ++deleted;
+                }
+            }
+            snapshot.deltaLink = pager.lastResponse().getOdataDeltaLink();
+        }
+        LOG.info("Received {} changed and {} deleted items.",
+                changed, deleted);
+    }
+
+    protected void prepareDeltaRequestConfig(
+            List<Column> columns,
+            DeltaRequestBuilder.GetRequestConfiguration config) {
+        assert config.queryParameters != null;
+        config.queryParameters.expand = prepareExpand(columns);
+        config.queryParameters.top = listConfiguration.pageSize;
+    }
+
+    /**
+     * Ask only for fields of given columns, so we do not download system
+     * and hidden fields we do not use.
+     */
+    protected String[] prepareExpand(List<Column> columns) {
+        if (columns.isEmpty()) {
+            // There are no columns so we do not need any fields.
+            return null;
+        }
+        var select = new StringBuilder("fields($select=");
+        for (int index = 0; index < columns.size(); ++index) {
+            if (index > 0) {
+                select.append(",");
+            }
+            select.append(columns.get(index).name);
+        }
+        select.append(")");
+        return new String[]{select.toString()};
+    }
+
+    /**
+     * Download columns and the first page of items for all the lists.
+     * Requests for all lists are sent using JSON batching, so it takes
+     * only two round-trips: one for columns and one for the items.
+     * Use {@link #downloadList(PrefetchedList, SharepointListHandler)}
+     * to stream the lists.
+     * <p>
+     * Failure of a list is stored in the {@link PrefetchedList}, so it
+     * does not affect the other lists.
+     */
+    public List<PrefetchedList> prefetchLists(
+            String siteIdentifier, List<String> listIdentifiers) {
+        var builders = new ArrayList<ListItemRequestBuilder>();
+        var batch = new GraphBatch(graphServiceClient);
+        var columnResponses =
+                new ArrayList<GraphBatch.Response<ColumnDefinitionCollectionResponse>>();
+        for (String listIdentifier : listIdentifiers) {
+            var builder = graphServiceClient
+                    .sites().bySiteId(siteIdentifier)
+                    .lists().byListId(listIdentifier);
+            builders.add(builder);
+            columnResponses.add(batch.add(
+                    builder.columns().toGetRequestInformation(),
+                    ColumnDefinitionCollectionResponse::createFromDiscriminatorValue));
+        }
+        batch.execute();
+        // We need columns to ask for items.
+        var columns = new ArrayList<List<Column>>();
+        var errors = new ArrayList<RuntimeException>();
+        var itemResponses =
+                new ArrayList<GraphBatch.Response<ListItemCollectionResponse>>();
+        for (int index = 0; index < builders.size(); ++index) {
+            var builder = builders.get(index);
+            List<Column> listColumns;
+            try {
+                listColumns = downloadColumns(
+                        builder, columnResponses.get(index).get());
+            } catch (RuntimeException ex) {
+                columns.add(Collections.emptyList());
+                errors.add(ex);
+                itemResponses.add(null);
+                continue;
+            }
+            columns.add(listColumns);
+            errors.add(null);
+            itemResponses.add(batch.add(
+                    builder.items().toGetRequestInformation(
+                            config -> prepareRequestConfig(listColumns, config)),
+                    ListItemCollectionResponse::createFromDiscriminatorValue));
+        }
+        batch.execute();
+        var result = new ArrayList<PrefetchedList>();
+        for (int index = 0; index < builders.size(); ++index) {
+            ListItemCollectionResponse firstPage = null;
+            RuntimeException error = errors.get(index);
+            if (error == null) {
+                try {
+                    firstPage = itemResponses.get(index).get();
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+            }
+            result.add(new PrefetchedList(
+                    listIdentifiers.get(index), columns.get(index),
+                    builders.get(index), firstPage, error));
+        }
+        return result;
+    }
+
+    /**
+     * Stream content of a prefetched list into the handler. When the
+     * prefetch failed, the list is downloaded without it.
+     */
+    public void downloadList(
+            PrefetchedList list, SharepointListHandler handler) {
+        if (list.error != null) {
+            LOG.warn("Prefetch of list '{}' failed, downloading it again.",
+                    list.listIdentifier, list.error);
+            downloadList(list.listRequestBuilder, handler);
+            return;
+        }
+        handler.onColumns(list.columns);
+        loadRows(list.listRequestBuilder, list.columns,
+                list.firstPage, handler);
     }
 
     protected List<Column> downloadColumns(
             ListItemRequestBuilder listRequestBuilder) {
         // We start with the first page.
-        var response = listRequestBuilder.columns().get();
+        return downloadColumns(
+                listRequestBuilder, listRequestBuilder.columns().get());
+    }
+
+    protected List<Column> downloadColumns(
+            ListItemRequestBuilder listRequestBuilder,
+            ColumnDefinitionCollectionResponse response) {
         if (response == null) {
             return Collections.emptyList();
         }
-        var pages = response.getValue();
         var result = new ArrayList<Column>();
-        while (pages != null) {
-            // Process page data.
-            for (ColumnDefinition column : pages) {
-                result.add(createColumn(column));
+        try (var pager = PrefetchPager.of(response,
+                ColumnDefinitionCollectionResponse::getValue,
+                next -> listRequestBuilder.columns().withUrl(next).get())) {
+            for (ColumnDefinition column : pager) {
+                if (isColumnSelected(column)) {
+                    result.add(createColumn(column));
+                }
             }
-            // Check next page or end.
-            if (response.getOdataNextLink() == null) {
-                // There is no more pages, we can terminate.
-                break;
-            } else {
-                // Move to the next page.
-                response = listRequestBuilder
-                        .withUrl(response.getOdataNextLink())
-                        .columns().get();
-                if (response == null) {
-                    break;
+        }
+        if (listConfiguration.columns != null) {
+            for (String name : listConfiguration.columns) {
+                if (result.stream().noneMatch(item -> item.name.equals(name))) {
+                    LOG.warn("Can't find column '{}'.", name);
                 }
-                pages = response.getValue();
             }
         }
         return result;
     }
 
+    protected boolean isColumnSelected(ColumnDefinition column) {
+        if (listConfiguration.columns != null) {
+            return listConfiguration.columns.contains(column.getName());
+        }
+        if (listConfiguration.skipSystemColumns) {
+            return !Boolean.TRUE.equals(column.getHidden())
+                    && !Boolean.TRUE.equals(column.getReadOnly());
+        }
+        return true;
+    }
+
     protected Column createColumn(ColumnDefinition column) {
         String name = column.getName();
         String label = column.getDisplayName();
@@ -102,48 +417,117 @@ public class Sharepoint {
         }
     }
 
-    protected List<Row> loadRows(
-            ListItemRequestBuilder listRequestBuilder, List<Column> columns) {
-        var response = listRequestBuilder.items()
-                .get(config -> prepareRequestConfig(columns, config));
-        if (response == null) {
-            return Collections.emptyList();
+    protected void loadRows(
+            ListItemRequestBuilder listRequestBuilder, List<Column> columns,
+            SharepointListHandler handler) {
+        ListItemPageReader.Page first;
+        if (listConfiguration.streamItems) {
+            first = fetchItemPage(
+                    listRequestBuilder.items().toGetRequestInformation(
+                            config -> prepareRequestConfig(columns, config)),
+                    new ListItemPageReader(columns));
+        } else {
+            first = toPage(columns, listRequestBuilder.items()
+                    .get(config -> prepareRequestConfig(columns, config)));
         }
-        var pages = response.getValue();
-        var result = new ArrayList<Row>();
-        while (pages != null) {
-            // Process page data.
-            for (ListItem row : pages) {
-                result.add(createRow(columns, row));
+        loadPages(listRequestBuilder, columns, first, handler);
+    }
+
+    protected void loadRows(
+            ListItemRequestBuilder listRequestBuilder, List<Column> columns,
+            ListItemCollectionResponse response,
+            SharepointListHandler handler) {
+        loadPages(listRequestBuilder, columns,
+                toPage(columns, response), handler);
+    }
+
+    /**
+     * Pages are stored by columns as soon as they are fetched, so the
+     * pages waiting in the pager do not keep the Graph model. When
+     * {@link ListConfiguration#streamItems} is set, the following pages
+     * are decoded using {@link ListItemPageReader}.
+     */
+    protected void loadPages(
+            ListItemRequestBuilder listRequestBuilder, List<Column> columns,
+            ListItemPageReader.Page first, SharepointListHandler handler) {
+        if (first == null) {
+            return;
+        }
+        Function<String, ListItemPageReader.Page> next;
+        if (listConfiguration.streamItems) {
+            var reader = new ListItemPageReader(columns);
+            next = link -> fetchItemPage(listRequestBuilder.items()
+                    .withUrl(link).toGetRequestInformation(), reader);
+        } else {
+            // The link already contains the query from the first request.
+            next = link -> toPage(columns,
+                    listRequestBuilder.items().withUrl(link).get());
+        }
+        try (var pager = PrefetchPager.create(first,
+                page -> page.list().rows,
+                ListItemPageReader.Page::nextLink,
+                next, PrefetchPager.DEFAULT_LOOKAHEAD)) {
+            for (ListItemPageReader.Page page : pager.pages()) {
+                handler.onPage(page.list());
             }
-            // Check next page or end.
-            if (response.getOdataNextLink() == null) {
-                // There is no more pages, we can terminate.
-                break;
-            } else {
-                // Move to the next page.
-                response = listRequestBuilder
-                        .withUrl(response.getOdataNextLink())
-                        .items()
-                        .get(config -> prepareRequestConfig(columns, config));
-                if (response == null) {
-                    break;
-                }
-                pages = response.getValue();
+        }
+    }
+
+    /**
+     * Return null when there is no content.
+     */
+    protected ListItemPageReader.Page toPage(
+            List<Column> columns, ListItemCollectionResponse response) {
+        if (response == null) {
+            return null;
+        }
+        var builder = new SharepointList.Builder(columns);
+        if (response.getValue() == null) {
+            return new ListItemPageReader.Page(builder.build(), null);
+        }
+        for (ListItem item : response.getValue()) {
+            builder.onRow(createRow(columns, item));
+        }
+        return new ListItemPageReader.Page(
+                builder.build(), response.getOdataNextLink());
+    }
+
+    /**
+     * Return null when there is no content.
+     */
+    protected ListItemPageReader.Page fetchItemPage(
+            RequestInformation request, ListItemPageReader reader) {
+        var errorMapping =
+                new HashMap<String, ParsableFactory<? extends Parsable>>();
+        errorMapping.put("XXX", ODataError::createFromDiscriminatorValue);
+        try (InputStream stream = graphServiceClient.getRequestAdapter()
+                .sendPrimitive(request, errorMapping, InputStream.class)) {
+            if (stream == null) {
+                return null;
             }
+            long start = System.nanoTime();
+            var result = reader.read(new InputStreamReader(
+                    stream, StandardCharsets.UTF_8));
+            Metrics.getInstance().histogram("graph_page_decode_seconds",
+                    "Time to receive and decode a streamed page of items.",
+                    Metrics.LATENCY_BUCKETS)
+                    .observe((System.nanoTime() - start) / 1e9);
+            return result;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
         }
-        return result;
     }
 
     // https://learn.microsoft.com/en-us/graph/api/listitem-list?view=graph-rest-1.0&tabs=java#example-1-get-list-items-with-specific-fields
     protected void prepareRequestConfig(List<Column> columns, ItemsRequestBuilder.GetRequestConfiguration config) {
         assert config.queryParameters != null;
-        config.queryParameters.expand = new String[]{"fields"};
+        config.queryParameters.expand = prepareExpand(columns);
+        config.queryParameters.top = listConfiguration.pageSize;
     }
 
     protected Row createRow(List<Column> columns, ListItem item) {
         if (item.getFields() == null) {
-            return new Row(Collections.emptyList());
+            return new Row(item.getId(), Collections.emptyList());
         }
         var values = new ArrayList<Cell>(columns.size());
         var data = item.getFields().getAdditionalData();
@@ -152,37 +536,168 @@ public class Sharepoint {
             var value = data.get(column.name);
             values.add(new Cell(column, value));
         }
-        return new Row(values);
+        return new Row(item.getId(), values);
+    }
+
+    /**
+     * Directory resolved from a path.
+     *
+     * @param cached True when resolved from the resolution cache, the
+     *               directory may no longer exist.
+     */
+    public record ResolvedDirectory(SharepointFile directory, boolean cached) {
     }
 
     public List<SharepointFile> listDriveDirectory(
             String siteIdentifier, String drivePath)
             throws SharepointException {
+        var resolved = resolveDirectoryPath(siteIdentifier, drivePath);
+        if (resolved == null) {
+            return Collections.emptyList();
+        }
+        var directory = resolved.directory();
+        try {
+            return listDriveDirectoryByIdentifier(
+                    directory.driveIdentifier, directory.fileIdentifier);
+        } catch (ApiException ex) {
+            if (!resolved.cached() || ex.getResponseStatusCode() != 404) {
+                throw ex;
+            }
+            // Cached directory no longer exists, the identifier
+            // was removed from the cache, so we try again.
+            directory = findDirectory(siteIdentifier, drivePath);
+            if (directory == null) {
+                return Collections.emptyList();
+            }
+            return listDriveDirectoryByIdentifier(
+                    directory.driveIdentifier, directory.fileIdentifier);
+        }
+    }
+
+    /**
+     * Resolve path starting with drive name to a directory.
+     * Returns null when the directory does not exist.
+     * Resolved directories are stored in the resolution cache.
+     */
+    public SharepointFile findDirectory(
+            String siteIdentifier, String drivePath)
+            throws SharepointException {
+        var result = resolveDirectoryPath(siteIdentifier, drivePath);
+        return result == null ? null : result.directory();
+    }
+
+    /**
+     * Same as {@link #findDirectory(String, String)}, tells whether the
+     * directory comes from the resolution cache.
+     */
+    public ResolvedDirectory resolveDirectoryPath(
+            String siteIdentifier, String drivePath)
+            throws SharepointException {
         List<String> path = Arrays.asList(drivePath.split("/"));
         if (path.isEmpty()) {
             LOG.warn("Path is empty");
-            return Collections.emptyList();
+            return null;
+        }
+        String key = "directory:" + siteIdentifier + "/" + drivePath;
+        String cached = resolutionCache.get(key);
+        if (cached != null) {
+            String[] identifiers = cached.split("/");
+            return new ResolvedDirectory(new SharepointFile(
+                    identifiers[0], identifiers[1], path.getLast(), 0, true),
+                    true);
+        }
+        var result = resolveDirectory(siteIdentifier, path);
+        if (result == null) {
+            return null;
+        }
+        resolutionCache.put(key,
+                result.driveIdentifier + "/" + result.fileIdentifier);
+        return new ResolvedDirectory(result, false);
+    }
+
+    /**
+     * Return true when the item still exists. If not the item is removed
+     * from the resolution cache.
+     */
+    public boolean exists(SharepointFile item) {
+        try {
+            graphServiceClient
+                    .drives().byDriveId(item.driveIdentifier)
+                    .items().byDriveItemId(item.fileIdentifier)
+                    .get(config -> {
+                        assert config.queryParameters != null;
+                        config.queryParameters.select = new String[]{"id"};
+                    });
+            return true;
+        } catch (ApiException ex) {
+            if (ex.getResponseStatusCode() != 404) {
+                throw ex;
+            }
+            resolutionCache.invalidate(item.fileIdentifier);
+            return false;
         }
+    }
+
+    protected SharepointFile resolveDirectory(
+            String siteIdentifier, List<String> path)
+            throws SharepointException {
         var pathIterator = path.iterator();
         String driveName = pathIterator.next();
         String driveIdentifier = findDriveByName(siteIdentifier, driveName);
         if (driveIdentifier == null) {
             LOG.warn("Can't find drive with required name '{}'.", driveName);
-            return Collections.emptyList();
+            return null;
+        }
+        if (path.size() > 1) {
+            // Try to resolve path using a single request.
+            try {
+                var item = findDirectoryByPath(
+                        driveIdentifier, path.subList(1, path.size()));
+                return new SharepointFile(
+                        driveIdentifier, item.getId(), path.getLast(),
+                        0, true);
+            } catch (ApiException ex) {
+                if (ex.getResponseStatusCode() == 404) {
+                    // The drive identifier may be from the cache.
+                    resolutionCache.invalidate(driveIdentifier);
+                    LOG.warn("Can not find path '{}'", path);
+                    return null;
+                }
+                LOG.info("Can't resolve path '{}' directly, status {}.",
+                        path, ex.getResponseStatusCode());
+            }
         }
-        // Retrieve directory content
-        var driverRoot = graphServiceClient.drives().byDriveId(driveIdentifier).root().get();
+        // Retrieve directory content, root and its content do not depend
+        // on each other so we ask for them together.
+        var driveBuilder = graphServiceClient.drives().byDriveId(driveIdentifier);
+        var batch = new GraphBatch(graphServiceClient);
+        var rootResponse = batch.add(
+                driveBuilder.root().toGetRequestInformation(),
+                DriveItem::createFromDiscriminatorValue);
+        GraphBatch.Response<DriveItemCollectionResponse> childrenResponse =
+                null;
+        if (pathIterator.hasNext()) {
+            childrenResponse = batch.add(
+                    driveBuilder.items().byDriveItemId("root")
+                            .children().toGetRequestInformation(),
+                    DriveItemCollectionResponse::createFromDiscriminatorValue);
+        }
+        batch.execute();
+        var driverRoot = rootResponse.get();
         if (driverRoot == null) {
             LOG.warn("There is no root for '{}'.", driveName);
-            return Collections.emptyList();
+            return null;
         }
         String directoryIdentifier = findDirectoryOnDrive(
-                driveIdentifier, driverRoot.getId(), pathIterator);
+                driveIdentifier, driverRoot.getId(), pathIterator,
+                childrenResponse == null ? null : childrenResponse.get());
         if (directoryIdentifier == null) {
             LOG.warn("Can not find path '{}'", path);
-            return Collections.emptyList();
+            return null;
         }
-        return listDriveDirectoryByIdentifier(driveIdentifier, directoryIdentifier);
+        return new SharepointFile(
+                driveIdentifier, directoryIdentifier, path.getLast(),
+                0, true);
     }
 
     /**
@@ -191,6 +706,21 @@ public class Sharepoint {
     protected String findDriveByName(
             String siteIdentifier, String driveName)
             throws SharepointException {
+        String key = "drive:" + siteIdentifier + "/" + driveName;
+        String cached = resolutionCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        String result = findDriveByNameOnSite(siteIdentifier, driveName);
+        if (result != null) {
+            resolutionCache.put(key, result);
+        }
+        return result;
+    }
+
+    protected String findDriveByNameOnSite(
+            String siteIdentifier, String driveName)
+            throws SharepointException {
         var diskRequestBuilder = graphServiceClient
                 .sites().bySiteId(siteIdentifier)
                 .drives();
@@ -198,32 +728,40 @@ public class Sharepoint {
         if (response == null) {
             throw new SharepointException("Can't list drives!");
         }
-        var pages = response.getValue();
-        while (pages != null) {
-            // Process response
-            for (Drive item : pages) {
+        try (var pager = PrefetchPager.of(response,
+                DriveCollectionResponse::getValue,
+                next -> diskRequestBuilder.withUrl(next).get())) {
+            for (Drive item : pager) {
                 if (driveName.equals(item.getName())) {
                     return item.getId();
                 }
             }
-            // Check next page or end.
-            if (response.getOdataNextLink() == null) {
-                // There is no more pages, we can terminate.
-                break;
-            } else {
-                // Move to the next page.
-                response = diskRequestBuilder
-                        .withUrl(response.getOdataNextLink())
-                        .get();
-                if (response == null) {
-                    break;
-                }
-                pages = response.getValue();
-            }
         }
         return null;
     }
 
+    /**
+     * Use path-based addressing to get an item in a single request.
+     */
+    // https://learn.microsoft.com/en-us/graph/onedrive-addressing-driveitems
+    protected DriveItem findDirectoryByPath(
+            String driveIdentifier, List<String> path) {
+        String encodedPath;
+        try {
+            encodedPath = new URI(null, null,
+                    "/" + String.join("/", path), null).getRawPath();
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException("Invalid path.", ex);
+        }
+        String url = graphServiceClient.getRequestAdapter().getBaseUrl()
+                + "/drives/" + driveIdentifier + "/root:" + encodedPath + ":";
+        return graphServiceClient
+                .drives().byDriveId(driveIdentifier)
+                .items().byDriveItemId("root")
+                .withUrl(url)
+                .get();
+    }
+
     /**
      * Returns driveIdentifier for folder of given name in given folder.
      */
@@ -231,6 +769,18 @@ public class Sharepoint {
             String driveIdentifier,
             String folderIdentifier,
             Iterator<String> pathIterator) throws SharepointException {
+        return findDirectoryOnDrive(
+                driveIdentifier, folderIdentifier, pathIterator, null);
+    }
+
+    /**
+     * @param response First page of the folder content, null to download.
+     */
+    protected String findDirectoryOnDrive(
+            String driveIdentifier,
+            String folderIdentifier,
+            Iterator<String> pathIterator,
+            DriveItemCollectionResponse response) throws SharepointException {
         if (!pathIterator.hasNext()) {
             return folderIdentifier;
         }
@@ -239,76 +789,301 @@ public class Sharepoint {
                 .drives().byDriveId(driveIdentifier)
                 .items().byDriveItemId(folderIdentifier)
                 .children();
-        var response = driveBuilder.get();
+        if (response == null) {
+            response = driveBuilder.get();
+        }
         if (response == null) {
             throw new SharepointException("Can't list folder content!");
         }
-        var pages = response.getValue();
-        while (pages != null) {
-            // Process page data.
-            for (var item : pages) {
+        String childIdentifier = null;
+        try (var pager = PrefetchPager.of(response,
+                DriveItemCollectionResponse::getValue,
+                next -> driveBuilder.withUrl(next).get())) {
+            for (DriveItem item : pager) {
                 if (folderName.equals(item.getName())) {
-                    // Recursion for the win ...
-                    return findDirectoryOnDrive(driveIdentifier, item.getId(), pathIterator);
-                }
-            }
-            // Check next page or end.
-            if (response.getOdataNextLink() == null) {
-                // There is no more pages, we can terminate.
-                break;
-            } else {
-                // Move to the next page.
-                response = driveBuilder
-                        .withUrl(response.getOdataNextLink())
-                        .get();
-                if (response == null) {
+                    childIdentifier = item.getId();
                     break;
                 }
-                pages = response.getValue();
             }
         }
+        if (childIdentifier != null) {
+            // Recursion for the win ...
+            return findDirectoryOnDrive(
+                    driveIdentifier, childIdentifier, pathIterator);
+        }
         // Ok we can not find what we are looking for.
         LOG.warn("Can't find '{}'.", folderName);
         return null;
     }
 
-    protected List<SharepointFile> listDriveDirectoryByIdentifier(
+    /**
+     * List files and folders in the directory.
+     */
+    public List<SharepointFile> listDriveDirectoryByIdentifier(
             String driveIdentifier, String directoryIdentifier) throws SharepointException {
 
         var driveBuilder = graphServiceClient
                 .drives().byDriveId(driveIdentifier)
                 .items().byDriveItemId(directoryIdentifier)
                 .children();
-        var response = driveBuilder.get();
+        DriveItemCollectionResponse response;
+        try {
+            response = driveBuilder.get();
+        } catch (ApiException ex) {
+            if (ex.getResponseStatusCode() == 404) {
+                resolutionCache.invalidate(directoryIdentifier);
+            }
+            throw ex;
+        }
         if (response == null) {
             throw new SharepointException("Can't list folder content!");
         }
-        var pages = response.getValue();
         var result = new ArrayList<SharepointFile>();
-        while (pages != null) {
-            // Process page data.
-            for (var item : pages) {
-                result.add(new SharepointFile(driveIdentifier, item.getId(), item.getName()));
-            }
-            // Check next page or end.
-            if (response.getOdataNextLink() == null) {
-                // There is no more pages, we can terminate.
-                break;
-            } else {
-                // Move to the next page.
-                response = driveBuilder
-                        .withUrl(response.getOdataNextLink())
-                        .get();
-                if (response == null) {
-                    break;
+        try (var pager = PrefetchPager.of(response,
+                DriveItemCollectionResponse::getValue,
+                next -> driveBuilder.withUrl(next).get())) {
+            for (DriveItem item : pager) {
+                if (item.getFolder() == null) {
+                    // Entry contains hash we can verify the download with.
+                    result.add(createManifestEntry(driveIdentifier, item));
+                    continue;
                 }
-                pages = response.getValue();
+                result.add(new SharepointFile(
+                        driveIdentifier, item.getId(), item.getName(),
+                        0, true));
             }
         }
         return result;
     }
 
-    public void downloadFile(SharepointFile file, Path outputDirectory)
+    /**
+     * Report changes on the drive since the delta link, all items are
+     * reported when the link is null. Returns the new delta link.
+     * Delta is supported only for the drive root, so changes of the whole
+     * drive are reported.
+     */
+    // https://learn.microsoft.com/en-us/graph/api/driveitem-delta?view=graph-rest-1.0
+    public String downloadDriveChanges(
+            String driveIdentifier, String deltaLink,
+            DriveChangeHandler handler) throws SharepointException {
+        var deltaBuilder = graphServiceClient
+                .drives().byDriveId(driveIdentifier)
+                .items().byDriveItemId("root")
+                .delta();
+        com.microsoft.graph.drives.item.items.item.delta
+                .DeltaGetResponse response;
+        if (deltaLink == null) {
+            try {
+                response = deltaBuilder.get();
+            } catch (ApiException ex) {
+                if (ex.getResponseStatusCode() == 404) {
+                    resolutionCache.invalidate(driveIdentifier);
+                }
+                throw ex;
+            }
+        } else {
+            try {
+                response = deltaBuilder.withUrl(deltaLink).get();
+            } catch (ApiException ex) {
+                if (ex.getResponseStatusCode() != 410) {
+                    throw ex;
+                }
+                LOG.warn("Delta link expired, listing all items.");
+                handler.onReset();
+                return downloadDriveChanges(driveIdentifier, null, handler);
+            }
+        }
+        if (response == null) {
+            throw new SharepointException("Can't list drive changes!");
+        }
+        // Response class has same name as the one for list delta.
+        try (var pager = PrefetchPager.create(response,
+                com.microsoft.graph.drives.item.items.item.delta
+                        .DeltaGetResponse::getValue,
+                com.microsoft.graph.drives.item.items.item.delta
+                        .DeltaGetResponse::getOdataNextLink,
+                next -> deltaBuilder.withUrl(next).get(),
+                PrefetchPager.DEFAULT_LOOKAHEAD)) {
+            for (DriveItem item : pager) {
+                if (item.getDeleted() != null) {
+                    handler.onDeleted(item.getId());
+                } else if (item.getFile() != null) {
+                    String parentIdentifier = item.getParentReference() == null
+                            ? null : item.getParentReference().getId();
+                    handler.onFileChanged(parentIdentifier,
+                            createManifestEntry(driveIdentifier, item));
+                }
+            }
+            return pager.lastResponse().getOdataDeltaLink();
+        }
+    }
+
+    protected DriveManifestEntry createManifestEntry(
+            String driveIdentifier, DriveItem item) {
+        String hashAlgorithm = null;
+        String hash = null;
+        var hashes = item.getFile() == null ? null : item.getFile().getHashes();
+        if (hashes != null) {
+            // Prefer the hash SharePoint provides for all files.
+            if (hashes.getQuickXorHash() != null) {
+                hashAlgorithm = ContentHasher.QUICK_XOR_HASH;
+                hash = hashes.getQuickXorHash();
+            } else if (hashes.getSha256Hash() != null) {
+                hashAlgorithm = ContentHasher.SHA256_HASH;
+                hash = hashes.getSha256Hash();
+            } else if (hashes.getSha1Hash() != null) {
+                hashAlgorithm = ContentHasher.SHA1_HASH;
+                hash = hashes.getSha1Hash();
+            }
+        }
+        Long size = item.getSize();
+        return new DriveManifestEntry(
+                driveIdentifier, item.getId(), item.getName(),
+                size == null ? 0 : size, item.getETag(), item.getCTag(),
+                hashAlgorithm, hash);
+    }
+
+    public FileHash downloadFile(SharepointFile file, Path outputDirectory)
+            throws IOException, SharepointException {
+        return downloadFile(file, outputDirectory, new FileConfiguration());
+    }
+
+    /**
+     * Large files are downloaded in parallel ranges and can be resumed.
+     * The file is written under a temporary name and moved once complete.
+     * <p>
+     * Hash is computed as the content is written. When Graph provides
+     * a hash for the file, the hashes are compared and the download is
+     * repeated on mismatch.
+     */
+    public FileHash downloadFile(
+            SharepointFile file, Path outputDirectory,
+            FileConfiguration configuration)
+            throws IOException, SharepointException {
+        if (file.folder) {
+            throw new SharepointException("Can't download a folder.");
+        }
+        Path destination = outputDirectory.resolve(file.fileName);
+        Path workingPath = RangedDownload.partPath(destination);
+        long start = System.nanoTime();
+        for (int attempt = 1; ; ++attempt) {
+            DriveManifestEntry expected =
+                    file instanceof DriveManifestEntry entry ? entry : null;
+            String actual;
+            boolean ranged = false;
+            if (file.size >= configuration.rangeThreshold) {
+                var item = getDownloadableItem(file);
+                // Metadata of the item are more recent than the listing.
+                expected = createManifestEntry(file.driveIdentifier, item);
+                if (expected.size >= configuration.rangeThreshold
+                        && canHashRanges(expected)) {
+                    ranged = true;
+                    try {
+                        actual = new RangedDownload(file, expected.size,
+                                configuration, expected.eTag,
+                                () -> getDownloadUrl(getDownloadableItem(file)),
+                                destination).execute();
+                    } catch (RangedDownload.ChangedException ex) {
+                        if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                            throw ex;
+                        }
+                        LOG.warn("File '{}' changed during download,"
+                                + " downloading again.", file.fileName);
+                        continue;
+                    }
+                } else {
+                    actual = downloadFileContent(
+                            file, expected.hashAlgorithm, workingPath);
+                }
+            } else {
+                actual = downloadFileContent(file,
+                        expected == null ? null : expected.hashAlgorithm,
+                        workingPath);
+            }
+            if (expected == null || expected.hash == null) {
+                moveToDestination(workingPath, destination);
+                recordDownload(destination, ranged, start);
+                return new FileHash(
+                        ContentHasher.QUICK_XOR_HASH, actual, false);
+            }
+            if (ContentHasher.matches(
+                    expected.hashAlgorithm, expected.hash, actual)) {
+                moveToDestination(workingPath, destination);
+                recordDownload(destination, ranged, start);
+                return new FileHash(expected.hashAlgorithm, actual, true);
+            }
+            Files.deleteIfExists(workingPath);
+            Metrics.getInstance().counter("file_hash_mismatches_total",
+                    "Number of downloads repeated due to hash mismatch.")
+                    .increment();
+            if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                throw new SharepointException("Hash mismatch for '"
+                        + file.fileName + "', expected " + expected.hash
+                        + " got " + actual + ".");
+            }
+            LOG.warn("Hash mismatch for '{}', downloading again.",
+                    file.fileName);
+        }
+    }
+
+    /**
+     * Ranges are hashed with quickXorHash, SHA hashes can not be combined.
+     * Files with only a SHA hash are downloaded in a single request,
+     * so the hash is computed as they are written.
+     */
+    protected static boolean canHashRanges(DriveManifestEntry entry) {
+        return entry.hash == null
+                || ContentHasher.QUICK_XOR_HASH.equals(entry.hashAlgorithm);
+    }
+
+    /**
+     * Ranged downloads do not use the Graph client, so they are not
+     * visible to its metrics and file downloads are recorded here.
+     */
+    protected static void recordDownload(
+            Path destination, boolean ranged, long start)
+            throws IOException {
+        var metrics = Metrics.getInstance();
+        String mode = ranged ? "ranged" : "single";
+        metrics.counter("files_downloaded_total",
+                "Number of downloaded files.", "mode", mode).increment();
+        metrics.counter("file_bytes_total",
+                "Size of downloaded files.", "mode", mode)
+                .add(Files.size(destination));
+        metrics.histogram("file_download_duration_seconds",
+                "Time to download a file including retries.",
+                Metrics.DURATION_BUCKETS, "mode", mode)
+                .observe((System.nanoTime() - start) / 1e9);
+    }
+
+    protected static void moveToDestination(
+            Path workingPath, Path destination) throws IOException {
+        Files.move(workingPath, destination,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected DriveItem getDownloadableItem(SharepointFile file) {
+        return graphServiceClient
+                .drives().byDriveId(file.driveIdentifier)
+                .items().byDriveItemId(file.fileIdentifier)
+                .get();
+    }
+
+    protected static String getDownloadUrl(DriveItem item) {
+        Object url = item.getAdditionalData()
+                .get("@microsoft.graph.downloadUrl");
+        if (url == null) {
+            throw new IllegalStateException("Missing download URL.");
+        }
+        return url.toString();
+    }
+
+    /**
+     * Stream content into the working file and return its hash.
+     */
+    protected String downloadFileContent(
+            SharepointFile file, String hashAlgorithm, Path workingPath)
             throws IOException, SharepointException {
         InputStream source = graphServiceClient
                 .drives().byDriveId(file.driveIdentifier)
@@ -319,12 +1094,21 @@ public class Sharepoint {
                     file.fileIdentifier, file.fileName);
             throw new SharepointException("Can't open required file.");
         }
-        Path destination = outputDirectory.resolve(file.fileName);
-        try (var output = Files.newOutputStream(destination)) {
-            source.transferTo(output);
+        var hasher = ContentHasher.create(hashAlgorithm);
+        byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+        try (var output = Files.newOutputStream(workingPath)) {
+            int read;
+            while ((read = source.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+                hasher.update(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(workingPath);
+            throw ex;
         } finally {
             source.close();
         }
+        return hasher.value();
     }
 
 }
@@ -8,10 +8,34 @@ public class SharepointFile {
 
     public final String fileName;
 
+    /**
+     * Size in bytes, zero when not known.
+     */
+    public final long size;
+
+    /**
+     * True for a folder, folders can not be downloaded.
+     */
+    public final boolean folder;
+
     public SharepointFile(String driveIdentifier, String fileIdentifier, String fileName) {
+        this(driveIdentifier, fileIdentifier, fileName, 0);
+    }
+
+    public SharepointFile(
+            String driveIdentifier, String fileIdentifier,
+            String fileName, long size) {
+        this(driveIdentifier, fileIdentifier, fileName, size, false);
+    }
+
+    public SharepointFile(
+            String driveIdentifier, String fileIdentifier,
+            String fileName, long size, boolean folder) {
         this.driveIdentifier = driveIdentifier;
         this.fileIdentifier = fileIdentifier;
         this.fileName = fileName;
+        this.size = size;
+        this.folder = folder;
     }
 
 }
@@ -1,16 +1,240 @@
 package cz.gov.data.ms.sharepoint;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Content of a list stored by columns, see {@link ColumnValues}.
+ * Rows are available as a view, they are created when accessed.
+ */
 public class SharepointList {
 
+    /**
+     * Collects rows into a list as they are downloaded, only values
+     * are kept, not the items.
+     */
+    public static class Builder implements SharepointListHandler {
+
+        protected List<Column> columns = Collections.emptyList();
+
+        protected ColumnValues[] values = new ColumnValues[0];
+
+        /**
+         * Index of a column by the field name.
+         */
+        protected Map<String, Integer> indices = Collections.emptyMap();
+
+        protected List<String> identifiers = new ArrayList<>();
+
+        protected BitSet withoutFields = new BitSet();
+
+        public Builder() {
+        }
+
+        public Builder(List<Column> columns) {
+            reset(columns);
+        }
+
+        @Override
+        public void onColumns(List<Column> columns) {
+            reset(columns);
+        }
+
+        private void reset(List<Column> columns) {
+            this.columns = new ArrayList<>(columns);
+            this.values = new ColumnValues[columns.size()];
+            this.indices = new HashMap<>();
+            for (int index = 0; index < values.length; ++index) {
+                Column column = columns.get(index);
+                values[index] = ColumnValues.create(column.type);
+                indices.put(column.name, index);
+            }
+            this.identifiers = new ArrayList<>();
+            this.withoutFields = new BitSet();
+        }
+
+        @Override
+        public void onRow(Row row) {
+            if (row.cells.isEmpty() && !columns.isEmpty()) {
+                addRowWithoutFields(row.identifier);
+                return;
+            }
+            var rowValues = new Object[values.length];
+            for (Cell cell : row.cells) {
+                Integer index = indices.get(cell.column.name);
+                if (index != null) {
+                    rowValues[index] = cell.value;
+                }
+            }
+            for (int index = 0; index < values.length; ++index) {
+                values[index].add(rowValues[index]);
+            }
+            identifiers.add(row.identifier);
+        }
+
+        /**
+         * Append the values without creating the rows.
+         */
+        @Override
+        public void onPage(SharepointList page) {
+            var sources = new ColumnValues[values.length];
+            for (int index = 0; index < page.columns.size(); ++index) {
+                Integer target = indices.get(page.columns.get(index).name);
+                if (target != null) {
+                    sources[target] = page.values[index];
+                }
+            }
+            for (int row = 0; row < page.rowCount; ++row) {
+                addRow(page, sources, row);
+            }
+        }
+
+        /**
+         * Append a row of a list with the same columns.
+         */
+        void addRow(SharepointList source, int row) {
+            addRow(source, source.values, row);
+        }
+
+        /**
+         * Sources are values of the source for each column, null
+         * when the column is missing.
+         */
+        protected void addRow(
+                SharepointList source, ColumnValues[] sources, int row) {
+            if (source.withoutFields.get(row)) {
+                addRowWithoutFields(source.identifiers.get(row));
+                return;
+            }
+            for (int index = 0; index < values.length; ++index) {
+                if (sources[index] == null) {
+                    values[index].addNull();
+                } else {
+                    values[index].addCompact(sources[index].getCompact(row));
+                }
+            }
+            identifiers.add(source.identifiers.get(row));
+        }
+
+        protected void addRowWithoutFields(String identifier) {
+            withoutFields.set(identifiers.size());
+            for (ColumnValues column : values) {
+                column.addNull();
+            }
+            identifiers.add(identifier);
+        }
+
+        /**
+         * Return index of the column with given name or null.
+         */
+        Integer indexOf(String name) {
+            return indices.get(name);
+        }
+
+        ColumnValues valuesAt(int index) {
+            return values[index];
+        }
+
+        public SharepointList build() {
+            for (ColumnValues column : values) {
+                column.trim();
+            }
+            return new SharepointList(
+                    columns, values, identifiers, withoutFields);
+        }
+
+    }
+
     public final List<Column> columns;
 
+    /**
+     * Rows view of the list, kept for consumers working with rows.
+     */
     public final List<Row> rows;
 
+    protected final ColumnValues[] values;
+
+    /**
+     * Item identifier for each row.
+     */
+    protected final List<String> identifiers;
+
+    /**
+     * Rows of items without fields, they have no cells.
+     */
+    protected final BitSet withoutFields;
+
+    protected final int rowCount;
+
     public SharepointList(List<Column> columns, List<Row> rows) {
+        this(collect(columns, rows));
+    }
+
+    protected SharepointList(SharepointList other) {
+        this(other.columns, other.values, other.identifiers,
+                other.withoutFields);
+    }
+
+    protected SharepointList(
+            List<Column> columns, ColumnValues[] values,
+            List<String> identifiers, BitSet withoutFields) {
         this.columns = Collections.unmodifiableList(columns);
-        this.rows = Collections.unmodifiableList(rows);
+        this.values = values;
+        this.identifiers = identifiers;
+        this.withoutFields = withoutFields;
+        this.rowCount = identifiers.size();
+        this.rows = new AbstractList<>() {
+
+            @Override
+            public Row get(int index) {
+                return getRow(index);
+            }
+
+            @Override
+            public int size() {
+                return SharepointList.this.rowCount;
+            }
+
+        };
+    }
+
+    private static SharepointList collect(
+            List<Column> columns, List<Row> rows) {
+        var builder = new Builder(columns);
+        for (Row row : rows) {
+            builder.onRow(row);
+        }
+        return builder.build();
+    }
+
+    public int getRowCount() {
+        return rowCount;
     }
+
+    /**
+     * Value as provided by Graph, e.g. Double for numbers.
+     */
+    public Object getValue(int row, int column) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException(row);
+        }
+        return values[column].get(row);
+    }
+
+    public Row getRow(int row) {
+        if (withoutFields.get(row)) {
+            return new Row(identifiers.get(row), Collections.emptyList());
+        }
+        var cells = new ArrayList<Cell>(columns.size());
+        for (int index = 0; index < columns.size(); ++index) {
+            cells.add(new Cell(columns.get(index), getValue(row, index)));
+        }
+        return new Row(identifiers.get(row), cells);
+    }
+
 }
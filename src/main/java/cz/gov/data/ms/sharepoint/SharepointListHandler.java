@@ -0,0 +1,25 @@
+package cz.gov.data.ms.sharepoint;
+
+import java.util.List;
+
+/**
+ * Receives content of a list as it is downloaded, page by page.
+ * Columns are always reported before any row.
+ */
+public interface SharepointListHandler {
+
+    void onColumns(List<Column> columns);
+
+    void onRow(Row row);
+
+    /**
+     * Called with a downloaded page, by default the rows are reported
+     * one by one.
+     */
+    default void onPage(SharepointList page) {
+        for (Row row : page.rows) {
+            onRow(row);
+        }
+    }
+
+}
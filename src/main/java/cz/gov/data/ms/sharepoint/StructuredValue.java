@@ -0,0 +1,110 @@
+package cz.gov.data.ms.sharepoint;
+
+import com.microsoft.kiota.serialization.UntypedArray;
+import com.microsoft.kiota.serialization.UntypedBoolean;
+import com.microsoft.kiota.serialization.UntypedDouble;
+import com.microsoft.kiota.serialization.UntypedNode;
+import com.microsoft.kiota.serialization.UntypedNull;
+import com.microsoft.kiota.serialization.UntypedObject;
+import com.microsoft.kiota.serialization.UntypedString;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Array or object value, e.g. multiple choices or lookups, stored without
+ * Kiota nodes. Items are String, Double, Boolean, null or nested values.
+ * The Kiota nodes are created only when the value is read.
+ */
+final class StructuredValue {
+
+    /**
+     * Property names for an object, null for an array.
+     */
+    final String[] names;
+
+    final Object[] items;
+
+    StructuredValue(String[] names, Object[] items) {
+        this.names = names;
+        this.items = items;
+    }
+
+    boolean isArray() {
+        return names == null;
+    }
+
+    /**
+     * Return compact form of a value parsed by Kiota.
+     */
+    static Object of(UntypedNode node) {
+        switch (node) {
+            case UntypedArray typed -> {
+                var items = new ArrayList<Object>();
+                for (UntypedNode item : typed.getValue()) {
+                    items.add(of(item));
+                }
+                return new StructuredValue(null, items.toArray());
+            }
+            case UntypedObject typed -> {
+                Map<String, UntypedNode> properties = typed.getValue();
+                var names = new String[properties.size()];
+                var items = new Object[properties.size()];
+                int index = 0;
+                for (var entry : properties.entrySet()) {
+                    names[index] = entry.getKey();
+                    items[index] = of(entry.getValue());
+                    ++index;
+                }
+                return new StructuredValue(names, items);
+            }
+            case UntypedString typed -> {
+                return typed.getValue();
+            }
+            case UntypedBoolean typed -> {
+                return typed.getValue();
+            }
+            case UntypedNull ignored -> {
+                return null;
+            }
+            default -> {
+                // All numbers in structured values are doubles in Kiota.
+                Object value = node.getValue();
+                return value instanceof Number number ?
+                        number.doubleValue() : value;
+            }
+        }
+    }
+
+    /**
+     * Return the value as parsed by Kiota.
+     */
+    UntypedNode toUntyped() {
+        if (isArray()) {
+            var result = new ArrayList<UntypedNode>(items.length);
+            for (Object item : items) {
+                result.add(toUntyped(item));
+            }
+            return new UntypedArray(result);
+        }
+        var result = new LinkedHashMap<String, UntypedNode>();
+        for (int index = 0; index < items.length; ++index) {
+            result.put(names[index], toUntyped(items[index]));
+        }
+        return new UntypedObject(result);
+    }
+
+    private static UntypedNode toUntyped(Object item) {
+        return switch (item) {
+            case null -> new UntypedNull();
+            case String typed -> new UntypedString(typed);
+            case Double typed -> new UntypedDouble(typed);
+            case Boolean typed -> new UntypedBoolean(typed);
+            case StructuredValue typed -> typed.toUntyped();
+            default -> throw new IllegalStateException(
+                    "Unexpected item " + item.getClass().getName() + ".");
+        };
+    }
+
+}
@@ -0,0 +1,107 @@
+package cz.gov.data.rdf;
+
+import org.eclipse.rdf4j.rio.RDFWriter;
+import org.eclipse.rdf4j.rio.binary.BinaryRDFWriter;
+import org.eclipse.rdf4j.rio.nquads.NQuadsWriter;
+import org.eclipse.rdf4j.rio.ntriples.NTriplesWriter;
+import org.eclipse.rdf4j.rio.trig.TriGWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Supported formats of RDF output. TriG is readable, the line based
+ * formats and RDF4J binary are faster to write and load.
+ */
+public enum OutputFormat {
+
+    TRIG,
+    NQUADS,
+    NTRIPLES,
+    BINARY;
+
+    /**
+     * Output is written in large blocks, we produce a lot of small writes.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final String GZIP_EXTENSION = ".gz";
+
+    /**
+     * Accepts names ignoring case and dashes, e.g. "n-quads".
+     */
+    public static OutputFormat parse(String value) {
+        String name = value.replace("-", "").toUpperCase(Locale.ROOT);
+        try {
+            return OutputFormat.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(
+                    "Unknown output format '" + value
+                            + "', supported formats are: " + names() + ".",
+                    ex);
+        }
+    }
+
+    /**
+     * Names accepted by {@link #parse(String)}, e.g. "trig, nquads".
+     */
+    public static String names() {
+        return Arrays.stream(values())
+                .map(format -> format.name().toLowerCase(Locale.ROOT))
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Output is compressed using gzip when the file name ends with ".gz".
+     */
+    public static boolean isCompressed(Path path) {
+        return path.getFileName().toString().endsWith(GZIP_EXTENSION);
+    }
+
+    /**
+     * Open buffered stream for the file, optionally compressed using gzip.
+     */
+    public static OutputStream openOutput(Path path, boolean compress)
+            throws IOException {
+        OutputStream result = Files.newOutputStream(path);
+        try {
+            if (compress) {
+                result = new GZIPOutputStream(result, BUFFER_SIZE);
+            }
+        } catch (IOException ex) {
+            result.close();
+            throw ex;
+        }
+        return new BufferedOutputStream(result, BUFFER_SIZE);
+    }
+
+    /**
+     * Documents in line based formats can be concatenated.
+     */
+    public boolean isLineBased() {
+        return this == NQUADS || this == NTRIPLES;
+    }
+
+    public RDFWriter createWriter(OutputStream stream) {
+        return switch (this) {
+            case TRIG -> new TriGWriter(createTextWriter(stream));
+            case NQUADS -> new NQuadsWriter(createTextWriter(stream));
+            case NTRIPLES -> new NTriplesWriter(createTextWriter(stream));
+            case BINARY -> new BinaryRDFWriter(stream);
+        };
+    }
+
+    private static OutputStreamWriter createTextWriter(OutputStream stream) {
+        return new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+    }
+
+}
@@ -10,14 +10,23 @@ import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.model.vocabulary.RDF;
 
 import java.util.Collection;
+import java.util.function.Consumer;
 
 public class StatementsBuilder implements RdfCollector {
 
     protected final ValueFactory valueFactory = SimpleValueFactory.getInstance();
 
-    protected final Collection<Statement> collector;
+    protected final Consumer<Statement> collector;
 
     public StatementsBuilder(Collection<Statement> collector) {
+        this.collector = collector::add;
+    }
+
+    /**
+     * Use to pass statements directly to a writer,
+     * e.g. {@link org.eclipse.rdf4j.rio.RDFHandler#handleStatement}.
+     */
+    public StatementsBuilder(Consumer<Statement> collector) {
         this.collector = collector;
     }
 
@@ -40,8 +49,10 @@ public class StatementsBuilder implements RdfCollector {
         add(subject, RDF.TYPE, type);
     }
 
+    @Override
     public void add(Resource subject, IRI predicate, Value object) {
-        collector.add(valueFactory.createStatement(subject, predicate, object));
+        collector.accept(
+                valueFactory.createStatement(subject, predicate, object));
     }
 
 }